@@ -0,0 +1,366 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Collects the internal counters, gauges and histograms of the adapter's components and reports them
+ * to KairosDB on the reporter schedule. Counters are cumulative and are reported as the change since
+ * the previous report, gauges are reported as their current value. Histograms are reported as the
+ * count, percentiles and maximum of the values recorded since the previous report, each tagged with
+ * its stat.
+ * <p>
+ * The same metrics can be rendered in the Prometheus text exposition format, so Prometheus can
+ * scrape the adapter even when KairosDB isn't accepting data. Metrics are grouped into families and
+ * their names and labels are rendered when they are added, so a scrape only appends the precomputed
+ * text and the current values. Histogram counts are copied into arrays allocated when the histogram
+ * was added.
+ */
+public class AdapterMetrics implements KairosMetricReporter
+{
+    private static final String[] STATS = {"count", "p50", "p90", "p99", "max"};
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final String host;
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+    private final List<HistogramMetric> histograms = new CopyOnWriteArrayList<>();
+    private final List<GaugeFamily> gaugeFamilies = new CopyOnWriteArrayList<>();
+    // Families in the order their first metric was added, looked up by metric name while adding
+    private final List<Family<Metric>> metricFamilies = new CopyOnWriteArrayList<>();
+    private final List<Family<HistogramMetric>> histogramFamilies = new CopyOnWriteArrayList<>();
+    private final Map<String, Family<Metric>> metricFamiliesByName = new HashMap<>();
+    private final Map<String, Family<HistogramMetric>> histogramFamiliesByName = new HashMap<>();
+
+    public AdapterMetrics()
+            throws UnknownHostException
+    {
+        host = InetAddress.getLocalHost().getHostName();
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Adds a cumulative count. The tag is optional.
+     */
+    public void addCounter(String metricName, String tagName, String tagValue, LongSupplier count)
+    {
+        addMetric(new Metric(metricName, tagName, tagValue, count, true));
+    }
+
+    /**
+     * Adds a value that is reported as is. The tag is optional.
+     */
+    public void addGauge(String metricName, String tagName, String tagValue, LongSupplier value)
+    {
+        addMetric(new Metric(metricName, tagName, tagValue, value, false));
+    }
+
+    private synchronized void addMetric(Metric metric)
+    {
+        metrics.add(metric);
+        family(metricFamilies, metricFamiliesByName, metric.metricName, metric.counter ? "counter" : "gauge").members.add(metric);
+    }
+
+    /**
+     * Adds a distribution of values. The tag is optional.
+     */
+    public synchronized void addHistogram(String metricName, String tagName, String tagValue, Histogram histogram)
+    {
+        HistogramMetric histogramMetric = new HistogramMetric(metricName, tagName, tagValue, histogram);
+        histograms.add(histogramMetric);
+        family(histogramFamilies, histogramFamiliesByName, metricName, "histogram").members.add(histogramMetric);
+    }
+
+    private static <T> Family<T> family(List<Family<T>> families, Map<String, Family<T>> familiesByName,
+            String metricName, String type)
+    {
+        return familiesByName.computeIfAbsent(metricName, name -> {
+            Family<T> family = new Family<>("# TYPE " + prometheusName(name) + " " + type + "\n");
+            families.add(family);
+            return family;
+        });
+    }
+
+    /**
+     * Adds a set of values whose tag values are only known when they are reported, such as one value per
+     * metric name. Each entry of the map is reported as a gauge tagged with the tag name and the key.
+     */
+    public void addGaugeFamily(String metricName, String tagName, Supplier<Map<String, Long>> values)
+    {
+        gaugeFamilies.add(new GaugeFamily(metricName, tagName, values));
+    }
+
+    @Override
+    public List<DataPointSet> getMetrics(long now)
+    {
+        List<DataPointSet> dataPointSets = new ArrayList<>(metrics.size() + histograms.size() * STATS.length);
+        for (Metric metric : metrics) {
+            dataPointSets.add(newDataPointSet(metric.metricName, metric.tagName, metric.tagValue, now, metric.next()));
+        }
+        for (HistogramMetric histogram : histograms) {
+            histogram.report(now, dataPointSets);
+        }
+        for (GaugeFamily family : gaugeFamilies) {
+            for (Map.Entry<String, Long> value : family.values.get().entrySet()) {
+                dataPointSets.add(newDataPointSet(family.metricName, family.tagName, value.getKey(), now, value.getValue()));
+            }
+        }
+        return dataPointSets;
+    }
+
+    /**
+     * Appends the current value of all metrics in the Prometheus text exposition format. Counters are
+     * rendered as their cumulative count and histograms as cumulative Prometheus histograms with power
+     * of two bucket bounds. Metrics registered with the same name are rendered as one family.
+     */
+    public void writePrometheusText(StringBuilder out)
+    {
+        for (Family<Metric> family : metricFamilies) {
+            out.append(family.header);
+            for (Metric metric : family.members) {
+                out.append(metric.prometheusSeries).append(metric.value.getAsLong()).append('\n');
+            }
+        }
+
+        for (Family<HistogramMetric> family : histogramFamilies) {
+            out.append(family.header);
+            for (HistogramMetric histogram : family.members) {
+                histogram.writePrometheusText(out);
+            }
+        }
+
+        for (GaugeFamily family : gaugeFamilies) {
+            out.append(family.header);
+            for (Map.Entry<String, Long> value : family.values.get().entrySet()) {
+                out.append(family.prometheusName).append('{').append(family.prometheusTagName).append("=\"");
+                appendLabelValue(out, value.getKey());
+                out.append("\"} ").append(value.getValue()).append('\n');
+            }
+        }
+    }
+
+    static String prometheusName(String metricName)
+    {
+        StringBuilder name = new StringBuilder(metricName.length());
+        for (int i = 0; i < metricName.length(); i++) {
+            char c = metricName.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9' && i > 0) || c == '_' || c == ':';
+            name.append(valid ? c : '_');
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the name and labels of a series in the text format, followed by the space before its value.
+     */
+    private static String prometheusSeries(String name, String tagName, String tagValue, String extraName, String extraValue)
+    {
+        StringBuilder out = new StringBuilder(name);
+        if (tagName != null || extraName != null) {
+            out.append('{');
+            if (tagName != null) {
+                out.append(prometheusName(tagName)).append("=\"");
+                appendLabelValue(out, tagValue);
+                out.append('"');
+            }
+            if (extraName != null) {
+                if (tagName != null) {
+                    out.append(',');
+                }
+                out.append(extraName).append("=\"").append(extraValue).append('"');
+            }
+            out.append('}');
+        }
+        return out.append(' ').toString();
+    }
+
+    private static void appendLabelValue(StringBuilder out, String value)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                out.append("\\n");
+            }
+            else {
+                out.append(c);
+            }
+        }
+    }
+
+    DataPointSet newDataPointSet(String metricName, String tagName, String tagValue, long now, long value)
+    {
+        DataPointSet dataPointSet = new DataPointSet(metricName);
+        dataPointSet.addTag("host", host);
+        if (tagName != null) {
+            dataPointSet.addTag(tagName, tagValue);
+        }
+        dataPointSet.addDataPoint(new LongDataPoint(now, value));
+        return dataPointSet;
+    }
+
+    private class HistogramMetric
+    {
+        private final String metricName;
+        private final String tagName;
+        private final String tagValue;
+        private final Histogram histogram;
+        private final long[] reported = new long[Histogram.BUCKETS];
+        private final long[] current = new long[Histogram.BUCKETS];
+        // Series of the buckets that end on a bound, null for the others
+        private final String[] bucketSeries = new String[Histogram.BUCKETS];
+        private final String infSeries;
+        private final String sumSeries;
+        private final String countSeries;
+
+        private HistogramMetric(String metricName, String tagName, String tagValue, Histogram histogram)
+        {
+            this.metricName = metricName;
+            this.tagName = tagName;
+            this.tagValue = tagValue;
+            this.histogram = histogram;
+
+            String name = prometheusName(metricName);
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                long highest = Histogram.highestValue(i);
+                // Bounds are one below each power of two, where a bucket of the histogram ends
+                if ((highest & (highest + 1)) == 0) {
+                    bucketSeries[i] = prometheusSeries(name + "_bucket", tagName, tagValue, "le", Long.toString(highest));
+                }
+            }
+            infSeries = prometheusSeries(name + "_bucket", tagName, tagValue, "le", "+Inf");
+            sumSeries = prometheusSeries(name + "_sum", tagName, tagValue, null, null);
+            countSeries = prometheusSeries(name + "_count", tagName, tagValue, null, null);
+        }
+
+        private synchronized void report(long now, List<DataPointSet> dataPointSets)
+        {
+            histogram.copyCounts(current);
+            long count = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                long cumulative = current[i];
+                current[i] -= reported[i];
+                reported[i] = cumulative;
+                count += current[i];
+            }
+
+            dataPointSets.add(newStatDataPointSet(STATS[0], now, count));
+            if (count > 0) {
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    dataPointSets.add(newStatDataPointSet(STATS[i + 1], now, Histogram.valueAtPercentile(current, count, PERCENTILES[i])));
+                }
+                dataPointSets.add(newStatDataPointSet(STATS[STATS.length - 1], now, Histogram.maxValue(current)));
+            }
+        }
+
+        private synchronized void writePrometheusText(StringBuilder out)
+        {
+            histogram.copyCounts(current);
+            long total = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                total += current[i];
+            }
+
+            long count = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                count += current[i];
+                if (bucketSeries[i] != null) {
+                    out.append(bucketSeries[i]).append(count).append('\n');
+                    if (count == total) {
+                        break;
+                    }
+                }
+            }
+
+            out.append(infSeries).append(count).append('\n');
+            out.append(sumSeries).append(histogram.getSum()).append('\n');
+            out.append(countSeries).append(count).append('\n');
+        }
+
+        private DataPointSet newStatDataPointSet(String stat, long now, long value)
+        {
+            DataPointSet dataPointSet = newDataPointSet(metricName, tagName, tagValue, now, value);
+            dataPointSet.addTag("stat", stat);
+            return dataPointSet;
+        }
+    }
+
+    private static class Family<T>
+    {
+        private final String header;
+        private final List<T> members = new CopyOnWriteArrayList<>();
+
+        private Family(String header)
+        {
+            this.header = header;
+        }
+    }
+
+    private static class GaugeFamily
+    {
+        private final String metricName;
+        private final String tagName;
+        private final Supplier<Map<String, Long>> values;
+        private final String header;
+        private final String prometheusName;
+        private final String prometheusTagName;
+
+        private GaugeFamily(String metricName, String tagName, Supplier<Map<String, Long>> values)
+        {
+            this.metricName = metricName;
+            this.tagName = tagName;
+            this.values = values;
+            this.prometheusName = prometheusName(metricName);
+            this.prometheusTagName = prometheusName(tagName);
+            this.header = "# TYPE " + prometheusName + " gauge\n";
+        }
+    }
+
+    private static class Metric
+    {
+        private final String metricName;
+        private final String tagName;
+        private final String tagValue;
+        private final LongSupplier value;
+        private final boolean counter;
+        private final String prometheusSeries;
+        private long lastReported;
+
+        private Metric(String metricName, String tagName, String tagValue, LongSupplier value, boolean counter)
+        {
+            this.metricName = metricName;
+            this.tagName = tagName;
+            this.tagValue = tagValue;
+            this.value = value;
+            this.counter = counter;
+            this.prometheusSeries = prometheusSeries(prometheusName(metricName), tagName, tagValue, null, null);
+        }
+
+        private long next()
+        {
+            long current = value.getAsLong();
+            if (!counter) {
+                return current;
+            }
+            long delta = current - lastReported;
+            lastReported = current;
+            return delta;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hands data points to KairosDB in batches instead of one at a time.
+ * <p>
+ * The shard writing the series of a request collects their data points into a {@link DataPointBatch}
+ * which is published when it reaches the batch size and when the series handed to the shard are
+ * done. A batch size of 1 publishes every data point as soon as it is added. Batches are published
+ * on the thread that fills them, which is the worker of the shard when the {@link IngestQueue} is
+ * enabled, so all data points of a series are published by the same thread and in order. When the
+ * write-ahead log is enabled each batch is appended to it before it is published and confirmed
+ * after.
+ * <p>
+ * Batches that fill up are published while the request is still being processed, so the data
+ * points of a request that fails part way may already have been published.
+ */
+public class BatchPublisher
+{
+    private static final String BATCH_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.batchSize";
+    private static final String METRIC_BATCHES = "kairosdb.prometheus.write-adapter.publish.batch.count";
+    private static final String METRIC_EVENTS = "kairosdb.prometheus.write-adapter.publish.event.count";
+
+    private final Publisher<DataPointEvent> dataPointPublisher;
+    private final int batchSize;
+    private final WriteAheadLog writeAheadLog;
+    private final RequestHistograms histograms;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder events = new LongAdder();
+
+    @Inject
+    public BatchPublisher(FilterEventBus eventBus, @Named(BATCH_SIZE_PROP) int batchSize, WriteAheadLog writeAheadLog,
+            RequestHistograms histograms, AdapterMetrics adapterMetrics)
+    {
+        checkNotNull(eventBus, "eventBus must not be null");
+        this.dataPointPublisher = eventBus.createPublisher(DataPointEvent.class);
+        this.batchSize = Math.max(batchSize, 1);
+        this.writeAheadLog = checkNotNull(writeAheadLog, "writeAheadLog must not be null");
+        this.histograms = checkNotNull(histograms, "histograms must not be null");
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_BATCHES, null, null, batches::sum);
+        adapterMetrics.addCounter(METRIC_EVENTS, null, null, events::sum);
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public DataPointBatch newBatch()
+    {
+        return new DataPointBatch(this, batchSize);
+    }
+
+    private void publish(List<DataPointEvent> batch)
+    {
+        WriteAheadLog.Entry entry = writeAheadLog.append(batch);
+        try {
+            // FilterEventBus only accepts single events, so the batch is posted in one tight loop
+            long start = System.nanoTime();
+            for (DataPointEvent event : batch) {
+                dataPointPublisher.post(event);
+            }
+            RequestHistograms.recordSince(histograms.publish, start);
+        }
+        finally {
+            // A batch that failed fails its request, so Prometheus sends it again
+            writeAheadLog.confirm(entry);
+        }
+        histograms.batchSize.record(batch.size());
+        batches.increment();
+        events.add(batch.size());
+    }
+
+    /**
+     * Data points waiting to be published. A batch belongs to the work of a single shard and is not
+     * thread safe.
+     */
+    public static class DataPointBatch
+    {
+        private final BatchPublisher publisher;
+        private final int batchSize;
+        private List<DataPointEvent> events;
+
+        private DataPointBatch(BatchPublisher publisher, int batchSize)
+        {
+            this.publisher = publisher;
+            this.batchSize = batchSize;
+        }
+
+        public void add(DataPointEvent event)
+        {
+            if (events == null) {
+                events = new ArrayList<>(Math.min(batchSize, 1024));
+            }
+            events.add(event);
+            if (events.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Publishes the data points added since the last flush.
+         */
+        public void flush()
+        {
+            if (events != null) {
+                List<DataPointEvent> batch = events;
+                events = null;
+                publisher.publish(batch);
+            }
+        }
+    }
+}
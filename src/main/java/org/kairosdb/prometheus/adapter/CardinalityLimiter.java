@@ -0,0 +1,210 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Limits the number of distinct series written for each metric name.
+ * <p>
+ * A metric keeps the fingerprints of the series it admitted in sets that hold at most limit entries
+ * between them, and HyperLogLog sketches of every series seen, which give the reported cardinality
+ * estimate. Once the limit is reached, a series is only admitted if its fingerprint is in a set. One
+ * in every sample rate new series is still admitted, a sample rate of 0 rejects them all. Sampled
+ * series aren't added to the sets, so they are sampled again once they drop out of the series tag
+ * cache. A limit of 0 disables the limiter.
+ * <p>
+ * Each metric has one set and one sketch per shard of the {@link IngestQueue}, used only by the
+ * thread writing that shard, so the series of a shard are checked without locks. The number of
+ * admitted series is the only state the shards share; it is a counter per metric that is raised
+ * once for each admitted series. The sets are primitive long tables, at most 21 bytes per
+ * fingerprint, which bounds the memory. Estimates are read from the sketches without locking and
+ * may miss the latest series.
+ * <p>
+ * The limiter is only asked about label sets that aren't in the series tag cache, and its answer is
+ * cached with the tags. When the label cardinality tracker strips a label of a metric, the
+ * fingerprints of its series change. The series are then asked about with a newer label version,
+ * which starts the metric over with empty sets, so the series already written are admitted again
+ * under their new fingerprints.
+ */
+public class CardinalityLimiter
+{
+    private static final Logger logger = LoggerFactory.getLogger(CardinalityLimiter.class);
+
+    private static final String LIMIT_PROP = "kairosdb.plugin.prometheus-adapter.writer.seriesLimit";
+    private static final String SAMPLE_RATE_PROP = "kairosdb.plugin.prometheus-adapter.writer.seriesLimitSampleRate";
+    private static final String MAX_METRICS_PROP = "kairosdb.plugin.prometheus-adapter.writer.seriesLimitMaxMetrics";
+
+    private static final String METRIC_REJECTED = "kairosdb.prometheus.write-adapter.cardinality.rejected.count";
+    private static final String METRIC_ESTIMATE = "kairosdb.prometheus.write-adapter.cardinality.estimate";
+
+    // 1024 registers per sketch, about 3% error of the reported estimate
+    private static final int PRECISION = 10;
+
+    private final int limit;
+    private final int sampleRate;
+    private final int shards;
+    private final Cache<String, MetricCardinality> metrics;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param limit      number of series of a metric above which new series are rejected. 0 disables the limiter.
+     * @param sampleRate one in this many new series of a metric over the limit is admitted. 0 admits none.
+     * @param maxMetrics maximum number of metric names tracked, the least recently used are forgotten
+     */
+    @Inject
+    public CardinalityLimiter(@Named(LIMIT_PROP) int limit, @Named(SAMPLE_RATE_PROP) int sampleRate,
+            @Named(MAX_METRICS_PROP) int maxMetrics, IngestQueue ingestQueue, AdapterMetrics adapterMetrics)
+    {
+        checkArgument(limit >= 0, "seriesLimit must not be negative");
+        checkArgument(sampleRate >= 0, "seriesLimitSampleRate must not be negative");
+        this.limit = limit;
+        this.sampleRate = sampleRate;
+        this.shards = checkNotNull(ingestQueue, "ingestQueue must not be null").getShardCount();
+        metrics = CacheBuilder.newBuilder()
+                .maximumSize(limit > 0 ? maxMetrics : 0)
+                .build();
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_REJECTED, null, null, rejected::sum);
+        adapterMetrics.addGaugeFamily(METRIC_ESTIMATE, "metric", this::getEstimates);
+
+        if (limit > 0) {
+            logger.info("Limiting metrics to " + limit + " series each");
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return limit > 0;
+    }
+
+    /**
+     * Returns true if the series of the metric may be written and false if it would take the metric
+     * over the limit. Only called by the thread writing the shard.
+     *
+     * @param labelVersion version of the labels of the metric the fingerprint was taken with
+     */
+    public boolean admit(int shard, String metricName, int labelVersion, long fingerprint)
+    {
+        if (limit == 0) {
+            return true;
+        }
+
+        MetricCardinality cardinality;
+        try {
+            cardinality = metrics.get(metricName, () -> new MetricCardinality(labelVersion));
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        while (cardinality.labelVersion < labelVersion) {
+            // A label of the metric was stripped, whichever shard sees it first starts the metric over
+            MetricCardinality current = new MetricCardinality(labelVersion);
+            if (metrics.asMap().replace(metricName, cardinality, current)) {
+                cardinality = current;
+            }
+            else {
+                MetricCardinality existing = metrics.asMap().putIfAbsent(metricName, current);
+                cardinality = existing != null ? existing : current;
+            }
+        }
+
+        if (cardinality.admit(shard, fingerprint)) {
+            return true;
+        }
+        rejected.increment();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Series of metric {} was rejected because the metric has more than {} series", metricName, limit);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the estimated number of series of each tracked metric.
+     */
+    public Map<String, Long> getEstimates()
+    {
+        ImmutableSortedMap.Builder<String, Long> estimates = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, MetricCardinality> entry : metrics.asMap().entrySet()) {
+            estimates.put(entry.getKey(), entry.getValue().estimate());
+        }
+        return estimates.build();
+    }
+
+    private class MetricCardinality
+    {
+        private final int labelVersion;
+        private final AtomicInteger admittedCount = new AtomicInteger();
+        // Indexed by shard, created by the thread of the shard when it first sees the metric
+        private final ShardCardinality[] shardCardinalities = new ShardCardinality[shards];
+
+        private MetricCardinality(int labelVersion)
+        {
+            this.labelVersion = labelVersion;
+        }
+
+        private boolean admit(int shard, long fingerprint)
+        {
+            ShardCardinality cardinality = shardCardinalities[shard];
+            if (cardinality == null) {
+                cardinality = new ShardCardinality();
+                shardCardinalities[shard] = cardinality;
+            }
+
+            cardinality.seen.add(fingerprint);
+            if (cardinality.admitted.contains(fingerprint)) {
+                return true;
+            }
+            if (reserve()) {
+                cardinality.admitted.add(fingerprint);
+                return true;
+            }
+            return sampleRate > 0 && ++cardinality.rejectedSeries % sampleRate == 0;
+        }
+
+        private boolean reserve()
+        {
+            int count;
+            do {
+                count = admittedCount.get();
+                if (count >= limit) {
+                    return false;
+                }
+            }
+            while (!admittedCount.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        private long estimate()
+        {
+            // The shards see disjoint series, so their estimates add up
+            long estimate = 0;
+            for (ShardCardinality cardinality : shardCardinalities) {
+                if (cardinality != null) {
+                    estimate += cardinality.seen.estimate();
+                }
+            }
+            return estimate;
+        }
+    }
+
+    private static class ShardCardinality
+    {
+        private final HyperLogLog seen = new HyperLogLog(PRECISION);
+        private final FingerprintSet admitted = new FingerprintSet();
+        private long rejectedSeries;
+    }
+}
@@ -0,0 +1,193 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.protobuf.CodedInputStream;
+import prometheus.Types.Label;
+import prometheus.Types.Sample;
+import prometheus.Types.TimeSeries;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/**
+ * Walks the wire format of a WriteRequest and decodes one TimeSeries at a time. Only the series
+ * currently being handed to the consumer is held in memory, not the whole request. Label names
+ * and values are looked up in a {@link LabelInterner} by their encoded bytes when one is given.
+ */
+public class CodedTimeSeriesStream implements TimeSeriesStream
+{
+    // Wire tags are (field number << 3) | wire type. Length delimited fields have wire type 2.
+    private static final int WRITE_REQUEST_TIMESERIES_TAG = 10;
+    private static final int TIMESERIES_LABELS_TAG = 10;
+    private static final int TIMESERIES_SAMPLES_TAG = 18;
+    private static final int LABEL_NAME_TAG = 10;
+    private static final int LABEL_VALUE_TAG = 18;
+    private static final int SAMPLE_VALUE_TAG = 9;
+    private static final int SAMPLE_TIMESTAMP_TAG = 16;
+
+    private final byte[] buffer;
+    private final int offset;
+    private final int length;
+    private final CodedInputStream input;
+    private final LabelInterner interner;
+    private final Closeable source;
+    private final TimeSeries.Builder timeSeriesBuilder = TimeSeries.newBuilder();
+    private final Label.Builder labelBuilder = Label.newBuilder();
+    private final Sample.Builder sampleBuilder = Sample.newBuilder();
+    private int seriesCount;
+    private boolean closed;
+
+    /**
+     * @param interner interns label strings, may be null
+     * @param source closed once the stream has been consumed or closed, for example to release the buffer, may be null
+     */
+    public CodedTimeSeriesStream(byte[] buffer, int offset, int length, LabelInterner interner, Closeable source)
+    {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.input = CodedInputStream.newInstance(buffer, offset, length);
+        this.input.setSizeLimit(Integer.MAX_VALUE);
+        this.interner = interner != null && interner.isEnabled() ? interner : null;
+        this.source = source;
+    }
+
+    @Override
+    public void forEach(Consumer<TimeSeries> consumer)
+            throws IOException
+    {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == WRITE_REQUEST_TIMESERIES_TAG) {
+                int oldLimit = input.pushLimit(input.readRawVarint32());
+                TimeSeries timeSeries = readTimeSeries();
+                input.popLimit(oldLimit);
+
+                seriesCount++;
+                consumer.accept(timeSeries);
+            }
+            else {
+                input.skipField(tag);
+            }
+        }
+        // On failure the buffer is kept until close() so the request can still be dumped
+        close();
+    }
+
+    @Override
+    public boolean writeTo(OutputStream out)
+            throws IOException
+    {
+        if (closed) {
+            return false;
+        }
+        out.write(buffer, offset, length);
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (source != null) {
+            try {
+                source.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private TimeSeries readTimeSeries()
+            throws IOException
+    {
+        timeSeriesBuilder.clear();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (tag) {
+                case TIMESERIES_LABELS_TAG: {
+                    int oldLimit = input.pushLimit(input.readRawVarint32());
+                    timeSeriesBuilder.addLabels(readLabel());
+                    input.popLimit(oldLimit);
+                    break;
+                }
+                case TIMESERIES_SAMPLES_TAG: {
+                    int oldLimit = input.pushLimit(input.readRawVarint32());
+                    timeSeriesBuilder.addSamples(readSample());
+                    input.popLimit(oldLimit);
+                    break;
+                }
+                default:
+                    input.skipField(tag);
+            }
+        }
+        return timeSeriesBuilder.build();
+    }
+
+    private Label readLabel()
+            throws IOException
+    {
+        labelBuilder.clear();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (tag) {
+                case LABEL_NAME_TAG:
+                    labelBuilder.setName(readString());
+                    break;
+                case LABEL_VALUE_TAG:
+                    labelBuilder.setValue(readString());
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        return labelBuilder.build();
+    }
+
+    private String readString()
+            throws IOException
+    {
+        if (interner == null) {
+            return input.readStringRequireUtf8();
+        }
+
+        int length = input.readRawVarint32();
+        int position = offset + input.getTotalBytesRead();
+        input.skipRawBytes(length); // Checks the length against the end of the message
+        return interner.intern(buffer, position, length);
+    }
+
+    private Sample readSample()
+            throws IOException
+    {
+        sampleBuilder.clear();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (tag) {
+                case SAMPLE_VALUE_TAG:
+                    sampleBuilder.setValue(input.readDouble());
+                    break;
+                case SAMPLE_TIMESTAMP_TAG:
+                    sampleBuilder.setTimestamp(input.readInt64());
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        return sampleBuilder.build();
+    }
+
+    @Override
+    public String toString()
+    {
+        // The builder holds the series being decoded or handed to the consumer last
+        return "CodedTimeSeriesStream{bytes=" + length + ", seriesDecoded=" + seriesCount
+                + ", lastMetric=" + TimeSeriesStream.metricNameOf(timeSeriesBuilder) + "}";
+    }
+}
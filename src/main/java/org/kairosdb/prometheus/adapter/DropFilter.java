@@ -0,0 +1,50 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides whether a metric or label name is kept, given a comma delimited list of regular
+ * expressions for names to drop. The set of distinct names is small, so decisions are cached by
+ * name and the expressions only run the first time a name is seen. The expressions themselves are
+ * compiled into a single {@link NameMatcher}.
+ */
+public class DropFilter
+{
+    private final NameMatcher matcher;
+    private final Cache<String, Boolean> decisions;
+
+    public DropFilter(String expressions, int cacheSize)
+    {
+        matcher = new NameMatcher(expressions);
+
+        decisions = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build();
+    }
+
+    public boolean shouldKeep(String name)
+    {
+        if (matcher.isEmpty()) {
+            return true;
+        }
+
+        Boolean keep = decisions.getIfPresent(name);
+        if (keep == null) {
+            keep = !matcher.matches(name);
+            decisions.put(name, keep);
+        }
+        return keep;
+    }
+
+    public long getHitCount()
+    {
+        return decisions.stats().hitCount();
+    }
+
+    public long getMissCount()
+    {
+        return decisions.stats().missCount();
+    }
+}
@@ -0,0 +1,167 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reports failed write requests without letting the reports grow with the size or rate of the requests.
+ * <p>
+ * A failure is logged with a short summary of the request instead of the whole request. At most one
+ * failure is logged per log interval, the others are counted and the count is added to the next
+ * message. When a dump directory is set, one in every sample rate failures is written to it as an
+ * uncompressed WriteRequest so it can be analyzed offline, until the directory holds the maximum
+ * number of dumps. A body that couldn't be decoded is dumped as it was received, uncompressed if
+ * decompression succeeded and with the .snappy suffix otherwise.
+ */
+public class ErrorDiagnostics
+{
+    private static final Logger logger = LoggerFactory.getLogger(ErrorDiagnostics.class);
+
+    private static final String LOG_INTERVAL_PROP = "kairosdb.plugin.prometheus-adapter.writer.errorLogInterval";
+    private static final String DUMP_DIRECTORY_PROP = "kairosdb.plugin.prometheus-adapter.writer.errorDumpDirectory";
+    private static final String DUMP_SAMPLE_RATE_PROP = "kairosdb.plugin.prometheus-adapter.writer.errorDumpSampleRate";
+    private static final String DUMP_MAX_FILES_PROP = "kairosdb.plugin.prometheus-adapter.writer.errorDumpMaxFiles";
+
+    private static final String METRIC_SUPPRESSED = "kairosdb.prometheus.write-adapter.error.suppressed.count";
+    private static final String METRIC_DUMPS = "kairosdb.prometheus.write-adapter.error.dump.count";
+
+    private static final String DUMP_PREFIX = "request-";
+    private static final String DUMP_SUFFIX = ".pb";
+    private static final String COMPRESSED_DUMP_SUFFIX = ".snappy";
+
+    private final long logInterval;
+    private final File dumpDirectory;
+    private final int dumpSampleRate;
+    private final AtomicLong nextLogTime = new AtomicLong();
+    private final AtomicLong suppressedSinceLog = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dumpSequence = new AtomicLong();
+    private final AtomicInteger dumpsLeft;
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder dumps = new LongAdder();
+
+    /**
+     * @param logInterval    minimum milliseconds between two logged failures
+     * @param dumpDirectory  directory failed requests are dumped to. Empty disables dumps.
+     * @param dumpSampleRate one in this many failed requests is dumped
+     * @param dumpMaxFiles   no more requests are dumped once the directory holds this many dumps
+     */
+    @Inject
+    public ErrorDiagnostics(@Named(LOG_INTERVAL_PROP) long logInterval, @Named(DUMP_DIRECTORY_PROP) String dumpDirectory,
+            @Named(DUMP_SAMPLE_RATE_PROP) int dumpSampleRate, @Named(DUMP_MAX_FILES_PROP) int dumpMaxFiles,
+            AdapterMetrics adapterMetrics)
+    {
+        checkArgument(dumpSampleRate > 0, "errorDumpSampleRate must be greater than 0");
+        this.logInterval = logInterval;
+        this.dumpDirectory = dumpDirectory == null || dumpDirectory.isEmpty() ? null : new File(dumpDirectory);
+        this.dumpSampleRate = dumpSampleRate;
+
+        int existingDumps = 0;
+        if (this.dumpDirectory != null) {
+            String[] files = this.dumpDirectory.list((dir, name) -> name.startsWith(DUMP_PREFIX)
+                    && (name.endsWith(DUMP_SUFFIX) || name.endsWith(COMPRESSED_DUMP_SUFFIX)));
+            existingDumps = files != null ? files.length : 0;
+        }
+        this.dumpsLeft = new AtomicInteger(Math.max(dumpMaxFiles - existingDumps, 0));
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_SUPPRESSED, null, null, suppressed::sum);
+        adapterMetrics.addCounter(METRIC_DUMPS, null, null, dumps::sum);
+    }
+
+    /**
+     * Logs the failure unless one was logged within the log interval and dumps the request if it is sampled.
+     */
+    public void requestFailed(String message, TimeSeriesStream stream, Throwable e)
+    {
+        log(message, stream, e);
+        if (isDumpSampled()) {
+            dump(DUMP_SUFFIX, stream::writeTo);
+        }
+    }
+
+    /**
+     * Logs the failure to decode a request body unless one was logged within the log interval and dumps
+     * the body if it is sampled. The buffer is null if the body was rejected while it was read.
+     */
+    public void bodyFailed(String message, SnappyBlockDecoder.Buffer buffer, Throwable e)
+    {
+        if (buffer == null) {
+            log(message, "Body{not read}", e);
+            return;
+        }
+        log(message, "Body{compressedBytes=" + buffer.getCompressedLength() + ", uncompressedBytes="
+                + (buffer.isUncompressed() ? buffer.getUncompressedLength() : "?") + "}", e);
+        if (isDumpSampled()) {
+            dump(buffer.isUncompressed() ? DUMP_SUFFIX : COMPRESSED_DUMP_SUFFIX, out -> {
+                buffer.writeTo(out);
+                return true;
+            });
+        }
+    }
+
+    private void log(String message, Object summary, Throwable e)
+    {
+        long now = System.currentTimeMillis();
+        long next = nextLogTime.get();
+        if (now >= next && nextLogTime.compareAndSet(next, now + logInterval)) {
+            long skipped = suppressedSinceLog.getAndSet(0);
+            logger.error(message + ": " + summary + (skipped > 0 ? " (" + skipped + " more failures were not logged)" : ""), e);
+        }
+        else {
+            suppressedSinceLog.incrementAndGet();
+            suppressed.increment();
+        }
+    }
+
+    private boolean isDumpSampled()
+    {
+        return dumpDirectory != null && failures.incrementAndGet() % dumpSampleRate == 0 && dumpsLeft.getAndDecrement() > 0;
+    }
+
+    private void dump(String suffix, DumpWriter writer)
+    {
+        // Failures dumped at the same time each get their own number
+        File file = new File(dumpDirectory, DUMP_PREFIX + System.currentTimeMillis() + "-" + dumpSequence.incrementAndGet() + suffix);
+        try {
+            Files.createDirectories(dumpDirectory.toPath());
+            boolean written;
+            try (OutputStream out = Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE_NEW)) {
+                written = writer.writeTo(out);
+            }
+            if (written) {
+                dumps.increment();
+                logger.info("Dumped failed request to " + file);
+            }
+            else {
+                Files.delete(file.toPath());
+                dumpsLeft.incrementAndGet();
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Could not dump failed request to " + file, e);
+        }
+    }
+
+    private interface DumpWriter
+    {
+        /**
+         * Writes the dump and returns false if there was nothing to write.
+         */
+        boolean writeTo(OutputStream out) throws IOException;
+    }
+}
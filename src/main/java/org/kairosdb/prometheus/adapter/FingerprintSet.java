@@ -0,0 +1,80 @@
+package org.kairosdb.prometheus.adapter;
+
+/**
+ * A set of 64 bit series fingerprints in an open addressing table of primitive longs, 8 bytes per
+ * slot. The table doubles when it is three quarters full, so it takes between 11 and 21 bytes per
+ * fingerprint. Not thread safe.
+ */
+final class FingerprintSet
+{
+    private static final int INITIAL_CAPACITY = 16;
+    // 0 marks an empty slot, the fingerprint 0 is tracked on its own
+    private static final long EMPTY = 0;
+
+    private long[] slots = new long[INITIAL_CAPACITY];
+    private boolean containsEmpty;
+    private int size;
+
+    boolean contains(long fingerprint)
+    {
+        if (fingerprint == EMPTY) {
+            return containsEmpty;
+        }
+        return slots[find(slots, fingerprint)] == fingerprint;
+    }
+
+    /**
+     * Adds the fingerprint and returns true if it wasn't in the set.
+     */
+    boolean add(long fingerprint)
+    {
+        if (fingerprint == EMPTY) {
+            if (containsEmpty) {
+                return false;
+            }
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+
+        int slot = find(slots, fingerprint);
+        if (slots[slot] == fingerprint) {
+            return false;
+        }
+        slots[slot] = fingerprint;
+        size++;
+        if (size > slots.length / 4 * 3) {
+            grow();
+        }
+        return true;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    private void grow()
+    {
+        long[] grown = new long[slots.length * 2];
+        for (long fingerprint : slots) {
+            if (fingerprint != EMPTY) {
+                grown[find(grown, fingerprint)] = fingerprint;
+            }
+        }
+        slots = grown;
+    }
+
+    /**
+     * Returns the slot holding the fingerprint or the empty slot it would go in.
+     */
+    private static int find(long[] table, long fingerprint)
+    {
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (table[slot] != EMPTY && table[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,218 @@
+package org.kairosdb.prometheus.adapter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for remote write and read requests, so CPU and allocation spikes in a
+ * recording can be matched to the requests that caused them, and for labels stripped from metrics.
+ * <p>
+ * The begin methods return null if the JVM has no flight recorder or the event isn't enabled, so a
+ * disabled event only costs the enabled check. Events are recorded without stack traces.
+ */
+final class FlightRecorderEvents
+{
+    private static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents()
+    {
+    }
+
+    static Decode beginDecode()
+    {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Decode event = new Decode();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static Write beginWrite()
+    {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Write event = new Write();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static Read beginRead()
+    {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Read event = new Read();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records that a label is stripped from a metric because it has too many values.
+     */
+    static void labelStripped(String metricName, String labelName, long values, String reason)
+    {
+        if (!AVAILABLE) {
+            return;
+        }
+        LabelStripped event = new LabelStripped();
+        if (event.isEnabled()) {
+            event.metricName = metricName;
+            event.labelName = labelName;
+            event.values = values;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    private static boolean isAvailable()
+    {
+        try {
+            // Java 8 runtimes before 8u262 don't have the jdk.jfr API
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Name("org.kairosdb.prometheus.Decode")
+    @Label("Prometheus Request Decode")
+    @Description("Reading and decompressing a remote write or read request body")
+    @Category({"KairosDB", "Prometheus Adapter"})
+    @StackTrace(false)
+    static class Decode extends Event
+    {
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Compressed Bytes")
+        @DataAmount
+        long compressedBytes;
+
+        @Label("Uncompressed Bytes")
+        @DataAmount
+        long uncompressedBytes;
+
+        @Label("Retry")
+        @Description("The body was written recently and wasn't decompressed")
+        boolean retry;
+
+        @Label("Read Duration")
+        @Timespan
+        long readDuration;
+
+        @Label("Decompress Duration")
+        @Timespan
+        long decompressDuration;
+
+        @Label("Parse Duration")
+        @Description("Parsing the whole message, 0 when series are parsed while they are written")
+        @Timespan
+        long parseDuration;
+    }
+
+    @Name("org.kairosdb.prometheus.Write")
+    @Label("Prometheus Remote Write")
+    @Description("Writing the series of a remote write request to KairosDB")
+    @Category({"KairosDB", "Prometheus Adapter"})
+    @StackTrace(false)
+    static class Write extends Event
+    {
+        @Label("Status")
+        int status;
+
+        @Label("Series")
+        int series;
+
+        @Label("Samples")
+        int samples;
+
+        @Label("Samples Sent")
+        int samplesSent;
+
+        @Label("Samples Dropped")
+        int samplesDropped;
+
+        @Label("Labels Dropped")
+        int labelsDropped;
+
+        @Label("Invalid Series")
+        int invalidSeries;
+
+        @Label("Limited Series")
+        @Description("Series rejected because their metric is over the series limit")
+        int limitedSeries;
+
+        @Label("Duplicate Samples")
+        int duplicates;
+
+        @Label("Out Of Order Samples")
+        int outOfOrder;
+
+        @Label("Process Duration")
+        @Description("Turning the series into data points, including parsing when streaming")
+        @Timespan
+        long processDuration;
+
+        @Label("Flush Duration")
+        @Description("Waiting for the data points to be published")
+        @Timespan
+        long flushDuration;
+    }
+
+    @Name("org.kairosdb.prometheus.Read")
+    @Label("Prometheus Remote Read")
+    @Description("Answering the queries of a remote read request")
+    @Category({"KairosDB", "Prometheus Adapter"})
+    @StackTrace(false)
+    static class Read extends Event
+    {
+        @Label("Queries")
+        int queries;
+
+        @Label("Series")
+        int series;
+
+        @Label("Samples")
+        int samples;
+    }
+
+    @Name("org.kairosdb.prometheus.LabelStripped")
+    @Label("Prometheus Label Stripped")
+    @Description("A label with too many values is no longer written for a metric")
+    @Category({"KairosDB", "Prometheus Adapter"})
+    @StackTrace(false)
+    static class LabelStripped extends Event
+    {
+        @Label("Metric Name")
+        String metricName;
+
+        @Label("Label Name")
+        String labelName;
+
+        @Label("Values")
+        @Description("Estimated number of distinct values of the label")
+        long values;
+
+        @Label("Reason")
+        String reason;
+    }
+}
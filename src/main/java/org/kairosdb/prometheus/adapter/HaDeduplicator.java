@@ -0,0 +1,141 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Drops the samples of all but one replica of Prometheus servers that run as HA pairs.
+ * <p>
+ * Series carry a cluster label naming the pair and a replica label naming the server. For each
+ * cluster one replica is elected and the samples of the other replicas are dropped. If the elected
+ * replica sends nothing for longer than the failover timeout, the next replica that sends samples is
+ * elected instead. Series without both labels are always accepted.
+ * <p>
+ * Series are routed to the shards of the {@link IngestQueue} without their replica label, so the
+ * copies of a series sent by every replica meet on the same shard. Each shard keeps its own
+ * elections, which only its thread touches, so accepting a sample is a plain map lookup. Shards
+ * elect and fail over independently, which can leave shards on different replicas for a while, but
+ * every series is only written from one replica at a time.
+ */
+public class HaDeduplicator
+{
+    private static final String ENABLED_PROP = "kairosdb.plugin.prometheus-adapter.ha.enabled";
+    private static final String CLUSTER_LABEL_PROP = "kairosdb.plugin.prometheus-adapter.ha.clusterLabel";
+    private static final String REPLICA_LABEL_PROP = "kairosdb.plugin.prometheus-adapter.ha.replicaLabel";
+    private static final String FAILOVER_TIMEOUT_PROP = "kairosdb.plugin.prometheus-adapter.ha.failoverTimeout";
+
+    private static final String METRIC_SWITCHES = "kairosdb.prometheus.write-adapter.ha.switch.count";
+    private static final String METRIC_DUPLICATES = "kairosdb.prometheus.write-adapter.ha.duplicate.count";
+    private static final String METRIC_CLUSTERS = "kairosdb.prometheus.write-adapter.ha.cluster.count";
+
+    private final boolean enabled;
+    private final String clusterLabel;
+    private final String replicaLabel;
+    private final long failoverTimeout;
+    private final List<Map<String, Election>> elections;
+    // Clusters seen by any shard, only added to the first time a shard sees a cluster
+    private final Set<String> clusters = ConcurrentHashMap.newKeySet();
+    private final LongAdder switches = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * @param failoverTimeout milliseconds without samples from the elected replica before another one is elected
+     */
+    @Inject
+    public HaDeduplicator(@Named(ENABLED_PROP) boolean enabled, @Named(CLUSTER_LABEL_PROP) String clusterLabel,
+            @Named(REPLICA_LABEL_PROP) String replicaLabel, @Named(FAILOVER_TIMEOUT_PROP) long failoverTimeout,
+            IngestQueue ingestQueue, AdapterMetrics adapterMetrics)
+    {
+        checkArgument(!enabled || (!clusterLabel.isEmpty() && !replicaLabel.isEmpty()), "clusterLabel and replicaLabel must be set");
+        this.enabled = enabled;
+        this.clusterLabel = clusterLabel;
+        this.replicaLabel = replicaLabel;
+        this.failoverTimeout = failoverTimeout;
+        int shards = checkNotNull(ingestQueue, "ingestQueue must not be null").getShardCount();
+        this.elections = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            elections.add(new HashMap<>());
+        }
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_SWITCHES, null, null, switches::sum);
+        adapterMetrics.addCounter(METRIC_DUPLICATES, null, null, duplicates::sum);
+        adapterMetrics.addGauge(METRIC_CLUSTERS, null, null, clusters::size);
+    }
+
+    /**
+     * Returns true if the label holds the name of the cluster.
+     */
+    boolean isClusterLabel(String labelName)
+    {
+        return enabled && clusterLabel.equals(labelName);
+    }
+
+    /**
+     * Returns true if the label holds the name of the replica. The replica label isn't stored as a tag.
+     */
+    boolean isReplicaLabel(String labelName)
+    {
+        return enabled && replicaLabel.equals(labelName);
+    }
+
+    /**
+     * Returns true if samples of the replica should be written. Counts the samples as duplicates
+     * otherwise. Only called by the thread writing the shard.
+     *
+     * @param cluster value of the cluster label or null
+     * @param replica value of the replica label or null
+     */
+    boolean accept(int shard, String cluster, String replica, long now, int samples)
+    {
+        if (cluster == null || replica == null) {
+            return true;
+        }
+
+        Map<String, Election> shardElections = elections.get(shard);
+        Election election = shardElections.get(cluster);
+        if (election == null) {
+            shardElections.put(cluster, new Election(replica, now));
+            clusters.add(cluster);
+            return true;
+        }
+
+        if (election.replica.equals(replica)) {
+            election.lastSeen = Math.max(election.lastSeen, now);
+            return true;
+        }
+
+        if (now - election.lastSeen <= failoverTimeout) {
+            duplicates.add(samples);
+            return false;
+        }
+
+        election.replica = replica;
+        election.lastSeen = now;
+        switches.increment();
+        return true;
+    }
+
+    private static class Election
+    {
+        private String replica;
+        private long lastSeen;
+
+        private Election(String replica, long lastSeen)
+        {
+            this.replica = replica;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Newest sample timestamp written for each series, used to drop samples that were already written.
+ * <p>
+ * Retried and resharded remote writes resend samples that are already stored. A sample at or below
+ * the high-water mark of its series is skipped instead of being written again. Marks are kept in
+ * fixed size arrays keyed by the series fingerprint, so memory is bounded. The table is 4-way set
+ * associative: a new series takes a free or idle slot in its set, or the slot that was updated least
+ * recently. A size of 0 disables the filter.
+ * <p>
+ * The table is split into one partition per shard of the {@link IngestQueue}. A series is always
+ * routed to the same shard and a partition is only used by the thread writing its shard, so marks
+ * are read and raised without locks.
+ */
+public class HighWaterMarks
+{
+    private static final String SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.highWaterMarkSize";
+    private static final String IDLE_TIMEOUT_PROP = "kairosdb.plugin.prometheus-adapter.writer.highWaterMarkIdleTimeout";
+
+    private static final String METRIC_EVICTIONS = "kairosdb.prometheus.write-adapter.high-water-mark.eviction.count";
+
+    private static final int WAYS = 4;
+    private static final long EMPTY = 0;
+
+    private final Partition[] partitions;
+    private final long idleTimeout;
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param size        number of series tracked, split between the shards and rounded up to a power
+     *                    of two per shard. 0 disables the filter.
+     * @param idleTimeout milliseconds after which the mark of a series that wasn't written is dropped
+     */
+    @Inject
+    public HighWaterMarks(@Named(SIZE_PROP) int size, @Named(IDLE_TIMEOUT_PROP) long idleTimeout, IngestQueue ingestQueue,
+            AdapterMetrics adapterMetrics)
+    {
+        checkArgument(size >= 0, "highWaterMarkSize must not be negative");
+        int shards = checkNotNull(ingestQueue, "ingestQueue must not be null").getShardCount();
+        int shardSize = (size + shards - 1) / shards;
+        int slots = shardSize > 0 ? Math.max(Integer.highestOneBit(shardSize - 1) << 1, WAYS) : 0;
+        this.partitions = new Partition[shards];
+        for (int i = 0; i < shards; i++) {
+            partitions[i] = new Partition(slots);
+        }
+        this.idleTimeout = idleTimeout;
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_EVICTIONS, null, null, evictions::sum);
+    }
+
+    public boolean isEnabled()
+    {
+        return partitions[0].fingerprints.length > 0;
+    }
+
+    /**
+     * Returns the newest timestamp written for the series or Long.MIN_VALUE if it isn't known. Only
+     * called by the thread writing the shard.
+     */
+    long get(int shard, long fingerprint, long now)
+    {
+        if (!isEnabled()) {
+            return Long.MIN_VALUE;
+        }
+
+        Partition partition = partitions[shard];
+        long key = key(fingerprint);
+        int set = partition.set(key);
+        for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+            if (partition.fingerprints[slot] == key) {
+                return now - partition.updated[slot] > idleTimeout ? Long.MIN_VALUE : partition.marks[slot];
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Raises the mark of each series to the newest timestamp written for it. Only called by the
+     * thread writing the shard.
+     */
+    void update(int shard, long[] seriesFingerprints, long[] timestamps, int count, long now)
+    {
+        Partition partition = partitions[shard];
+        for (int i = 0; i < count; i++) {
+            update(partition, seriesFingerprints[i], timestamps[i], now);
+        }
+    }
+
+    private void update(Partition partition, long fingerprint, long timestamp, long now)
+    {
+        long key = key(fingerprint);
+        int set = partition.set(key);
+        long[] fingerprints = partition.fingerprints;
+        long[] marks = partition.marks;
+        long[] updated = partition.updated;
+        int victim = -1;
+        for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+            if (fingerprints[slot] == key) {
+                if (now - updated[slot] > idleTimeout || marks[slot] < timestamp) {
+                    marks[slot] = timestamp;
+                }
+                updated[slot] = now;
+                return;
+            }
+            if (victim == -1 || fingerprints[slot] == EMPTY
+                    || (fingerprints[victim] != EMPTY && updated[slot] < updated[victim])) {
+                victim = slot;
+            }
+        }
+
+        if (fingerprints[victim] != EMPTY && now - updated[victim] <= idleTimeout) {
+            evictions.increment();
+        }
+        fingerprints[victim] = key;
+        marks[victim] = timestamp;
+        updated[victim] = now;
+    }
+
+    private static long key(long fingerprint)
+    {
+        // 0 marks an empty slot
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+
+    private static class Partition
+    {
+        private final long[] fingerprints;
+        private final long[] marks;
+        private final long[] updated;
+        private final int setMask;
+
+        private Partition(int slots)
+        {
+            fingerprints = new long[slots];
+            marks = new long[slots];
+            updated = new long[slots];
+            setMask = slots / WAYS - 1;
+        }
+
+        private int set(long key)
+        {
+            return (int) (key ^ (key >>> 32)) & setMask;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.kairosdb.prometheus.adapter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cumulative histogram of non-negative values with log-linear buckets, in the style of HdrHistogram.
+ * <p>
+ * Values below 32 get a bucket each, larger values share each power of two between 16 buckets, so a
+ * reported value is within 1/16 of the recorded one. Recording is an atomic increment into a fixed
+ * array plus an add to a striped sum and doesn't allocate. Counts are never reset: readers copy them
+ * and work on the difference between two copies to get the distribution of an interval.
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value)
+    {
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     */
+    long getSum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * Copies the count of each bucket into the array, which must hold {@link #BUCKETS} values.
+     */
+    void copyCounts(long[] into)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts.get(i);
+        }
+    }
+
+    /**
+     * Returns the highest value that falls in the same bucket as the value at the percentile of the counts.
+     */
+    static long valueAtPercentile(long[] bucketCounts, long total, double percentile)
+    {
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the highest value of the highest bucket with a count or 0 if the counts are empty.
+     */
+    static long maxValue(long[] bucketCounts)
+    {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (bucketCounts[i] > 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    static int bucket(long value)
+    {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValue(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
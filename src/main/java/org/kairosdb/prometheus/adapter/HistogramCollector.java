@@ -0,0 +1,250 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableSortedMap;
+import prometheus.Types.Sample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the _bucket, _sum and _count series of classic Prometheus histograms in one write request,
+ * grouped by their metric name without the suffix and their labels without "le", so each histogram
+ * can be written as one {@link PrometheusHistogramDataPoint} per timestamp.
+ * <p>
+ * A _sum or _count series is only collected once the shard collected buckets of its histogram in
+ * the request, otherwise it is handed back to be written as it is. Prometheus writes the buckets of
+ * a histogram before its sum and count, and this keeps the sum of a summary or a counter whose name
+ * ends in _count from waiting for buckets that never come.
+ * <p>
+ * Only timestamps with a +Inf bucket are collapsed. Remote write can split the series of one scrape
+ * across requests, and a timestamp without its +Inf bucket is taken to be such a partial histogram.
+ * Its buckets, sum and count are written as they are rather than as a histogram missing buckets. So
+ * are the _sum and _count samples of a timestamp that has no buckets. A partial histogram that has
+ * its +Inf bucket but lost others to another request can't be told apart and is still collapsed.
+ * <p>
+ * Each shard of the {@link IngestQueue} collects the histograms routed to it, so a collector is only
+ * used by one thread.
+ */
+class HistogramCollector
+{
+    private final Map<Long, Group> groups = new HashMap<>();
+
+    /**
+     * Collects the samples of a histogram series and returns true, or returns false if it is a _sum or
+     * _count series without buckets collected before it, which the caller writes as it is.
+     */
+    boolean add(SeriesTags seriesTags, List<Sample> samples)
+    {
+        Part part = seriesTags.histogramPart;
+        Group group;
+        switch (part.kind) {
+            case BUCKET:
+                group = groups.computeIfAbsent(part.fingerprint, fingerprint -> new Group(part));
+                group.bucketTags.put(part.bound, seriesTags);
+                for (Sample sample : samples) {
+                    group.point(sample.getTimestamp()).addBucket(part.bound, part.le, sample.getValue());
+                }
+                return true;
+            case SUM:
+                group = groups.get(part.fingerprint);
+                if (group == null) {
+                    return false;
+                }
+                group.sumTags = seriesTags;
+                for (Sample sample : samples) {
+                    group.point(sample.getTimestamp()).sum = sample.getValue();
+                }
+                return true;
+            case COUNT:
+                group = groups.get(part.fingerprint);
+                if (group == null) {
+                    return false;
+                }
+                group.countTags = seriesTags;
+                for (Sample sample : samples) {
+                    group.point(sample.getTimestamp()).count = sample.getValue();
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return groups.isEmpty();
+    }
+
+    List<Group> getGroups()
+    {
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Parses an "le" bound, which Prometheus writes as a Go float with "+Inf" for the last bucket.
+     * Returns null if the bound isn't a number.
+     */
+    static Double parseBound(String le)
+    {
+        switch (le) {
+            case "+Inf":
+            case "Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(le);
+                }
+                catch (NumberFormatException e) {
+                    return null;
+                }
+        }
+    }
+
+    enum Kind
+    {
+        BUCKET, SUM, COUNT
+    }
+
+    /**
+     * Identifies the histogram a series belongs to. Built once per label set and cached with its tags.
+     */
+    static class Part
+    {
+        final Kind kind;
+        final String metricName;
+        final ImmutableSortedMap<String, String> tags;
+        final long fingerprint;
+        final String le;
+        final double bound;
+
+        private Part(Kind kind, String metricName, ImmutableSortedMap<String, String> tags, String le, double bound)
+        {
+            this.kind = kind;
+            this.metricName = metricName;
+            this.tags = tags;
+            this.fingerprint = SeriesFingerprint.of(metricName, tags);
+            this.le = le;
+            this.bound = bound;
+        }
+
+        /**
+         * Returns the part of a histogram the series is, or null if its name and labels don't look like one.
+         */
+        static Part of(String metricName, ImmutableSortedMap<String, String> tags)
+        {
+            if (metricName.endsWith("_bucket")) {
+                String le = tags.get("le");
+                Double bound = le != null ? parseBound(le) : null;
+                if (bound == null) {
+                    return null;
+                }
+                ImmutableSortedMap.Builder<String, String> histogramTags = ImmutableSortedMap.naturalOrder();
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    if (!tag.getKey().equals("le")) {
+                        histogramTags.put(tag);
+                    }
+                }
+                return new Part(Kind.BUCKET, metricName.substring(0, metricName.length() - "_bucket".length()),
+                        histogramTags.build(), le, bound);
+            }
+            if (metricName.endsWith("_sum")) {
+                return new Part(Kind.SUM, metricName.substring(0, metricName.length() - "_sum".length()), tags, null, 0);
+            }
+            if (metricName.endsWith("_count")) {
+                return new Part(Kind.COUNT, metricName.substring(0, metricName.length() - "_count".length()), tags, null, 0);
+            }
+            return null;
+        }
+    }
+
+    static class Group
+    {
+        final String metricName;
+        final ImmutableSortedMap<String, String> tags;
+        final long fingerprint;
+        final TreeMap<Long, PointBuilder> points = new TreeMap<>();
+        // Tags of each bucket series by bound, to write the buckets of partial histograms as they are
+        final Map<Double, SeriesTags> bucketTags = new HashMap<>();
+        SeriesTags sumTags;
+        SeriesTags countTags;
+
+        private Group(Part part)
+        {
+            metricName = part.metricName;
+            tags = part.tags;
+            fingerprint = part.fingerprint;
+        }
+
+        private PointBuilder point(long timestamp)
+        {
+            return points.computeIfAbsent(timestamp, PointBuilder::new);
+        }
+    }
+
+    static class PointBuilder
+    {
+        final long timestamp;
+        final TreeMap<Double, String> bounds = new TreeMap<>();
+        final Map<Double, Double> counts = new HashMap<>();
+        double sum = Double.NaN;
+        double count = Double.NaN;
+
+        private PointBuilder(long timestamp)
+        {
+            this.timestamp = timestamp;
+        }
+
+        private void addBucket(double bound, String le, double value)
+        {
+            bounds.put(bound, le);
+            counts.put(bound, value);
+        }
+
+        /**
+         * Returns true if the point has a +Inf bucket. A point without one is a partial histogram or only
+         * holds a _sum or _count sample.
+         */
+        boolean isComplete()
+        {
+            return bounds.containsKey(Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Returns the number of samples merged into the point.
+         */
+        int getSamples()
+        {
+            return bounds.size() + (Double.isNaN(sum) ? 0 : 1) + (Double.isNaN(count) ? 0 : 1);
+        }
+
+        /**
+         * Returns the data point or null if it isn't complete or has a value that isn't a finite number.
+         * A point that isn't complete is written as its samples instead.
+         */
+        PrometheusHistogramDataPoint build()
+        {
+            if (!isComplete() || Double.isInfinite(sum) || Double.isInfinite(count)) {
+                return null;
+            }
+            String[] les = new String[bounds.size()];
+            double[] values = new double[bounds.size()];
+            int i = 0;
+            for (Map.Entry<Double, String> bound : bounds.entrySet()) {
+                les[i] = bound.getValue();
+                values[i] = counts.get(bound.getKey());
+                if (Double.isNaN(values[i]) || Double.isInfinite(values[i])) {
+                    return null;
+                }
+                i++;
+            }
+            // The +Inf bucket counts every observation
+            double total = Double.isNaN(count) ? counts.get(Double.POSITIVE_INFINITY) : count;
+            return new PrometheusHistogramDataPoint(timestamp, les, values, sum, total);
+        }
+    }
+}
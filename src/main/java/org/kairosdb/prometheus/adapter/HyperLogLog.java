@@ -0,0 +1,64 @@
+package org.kairosdb.prometheus.adapter;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct 64 bit hashes added to it in a fixed
+ * 2^precision bytes. Estimates are within about 1.04 / sqrt(2^precision) of the true count. Not thread
+ * safe.
+ */
+final class HyperLogLog
+{
+    private final int precision;
+    private final byte[] registers;
+
+    HyperLogLog(int precision)
+    {
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds the hash and returns true if the sketch changed. A hash that was added before never changes it.
+     */
+    boolean add(long hash)
+    {
+        int index = index(hash);
+        byte rank = rank(hash);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+            return true;
+        }
+        return false;
+    }
+
+    private int index(long hash)
+    {
+        return (int) (hash >>> (64 - precision));
+    }
+
+    private byte rank(long hash)
+    {
+        // The sentinel bit caps the rank for hashes whose remaining bits are all 0
+        return (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    }
+
+    long estimate()
+    {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,353 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.KairosDBService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded queue between decoding a write request and writing its series.
+ * <p>
+ * The queue is split into shards, each drained by its own worker thread. A series is always routed
+ * to the same shard, and the shard owns the per-series state of the series it is routed: the tag
+ * cache, HA elections, high-water marks and admitted series of the cardinality limiter are kept in
+ * one partition per shard that only its worker touches, so they need no locks. The request thread
+ * only decodes the series and hands them to their shards, the workers turn them into data points
+ * and publish them. Since a shard's work runs in order, the data points of a series reach KairosDB
+ * in order.
+ * <p>
+ * When a shard stays full for longer than the offer timeout the work is rejected. If no work of the
+ * request was queued yet the write endpoint answers with 429 and Prometheus backs off instead of
+ * retrying at full speed. Once work of the request is queued it is done whatever the answer, so a
+ * later rejection waits for the queued work and is answered with 503; the retry writes those data
+ * points again, which KairosDB stores over the identical ones. A request is only answered once all
+ * of its queued work is done, and with 500 if any of it failed, so a write acknowledged to
+ * Prometheus is never lost in the queue. The queue bounds the work in flight and keeps each shard's
+ * state on one thread; it doesn't answer requests earlier.
+ * <p>
+ * A depth of 0 disables the queue. Work then runs on the request thread while it holds the lock of
+ * its shard, so the state of a shard is still only used by one thread at a time.
+ */
+public class IngestQueue implements KairosDBService
+{
+    private static final Logger logger = LoggerFactory.getLogger(IngestQueue.class);
+
+    private static final String QUEUE_DEPTH_PROP = "kairosdb.plugin.prometheus-adapter.writer.queueDepth";
+    private static final String SHARDS_PROP = "kairosdb.plugin.prometheus-adapter.writer.shards";
+    private static final String QUEUE_OFFER_TIMEOUT_PROP = "kairosdb.plugin.prometheus-adapter.writer.queueOfferTimeout";
+    private static final String RETRY_AFTER_PROP = "kairosdb.plugin.prometheus-adapter.writer.retryAfter";
+
+    private static final String METRIC_QUEUE_DEPTH = "kairosdb.prometheus.write-adapter.queue.depth";
+    private static final String METRIC_QUEUE_REJECTED = "kairosdb.prometheus.write-adapter.queue.rejected.count";
+    private static final String METRIC_QUEUE_WAIT_TIME = "kairosdb.prometheus.write-adapter.queue.wait.time";
+    private static final String METRIC_QUEUE_WAIT_COUNT = "kairosdb.prometheus.write-adapter.queue.wait.count";
+
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    private final List<BlockingQueue<Task>> shards;
+    // Taken by the request thread running the work of a shard when the queue is disabled
+    private final Object[] shardLocks;
+    private final long offerTimeout;
+    private final int retryAfter;
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    /**
+     * @param depth        maximum number of series batches waiting to be written, split evenly between
+     *                     the shards. 0 disables the queue.
+     * @param shardCount   number of shards and worker threads. 0 uses the number of available processors.
+     * @param offerTimeout milliseconds a request waits for room in a full queue before it is rejected
+     * @param retryAfter   seconds returned to Prometheus in the Retry-After header of a rejected request
+     */
+    @Inject
+    public IngestQueue(@Named(QUEUE_DEPTH_PROP) int depth, @Named(SHARDS_PROP) int shardCount,
+            @Named(QUEUE_OFFER_TIMEOUT_PROP) long offerTimeout, @Named(RETRY_AFTER_PROP) int retryAfter,
+            AdapterMetrics adapterMetrics)
+    {
+        checkArgument(depth >= 0, "queueDepth must not be negative");
+        checkArgument(shardCount >= 0, "shards must not be negative");
+        this.shards = new ArrayList<>();
+        int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        if (depth > 0) {
+            int shardDepth = Math.max((depth + count - 1) / count, 1);
+            for (int i = 0; i < count; i++) {
+                shards.add(new ArrayBlockingQueue<>(shardDepth));
+            }
+        }
+        this.shardLocks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            shardLocks[i] = new Object();
+        }
+        this.offerTimeout = offerTimeout;
+        this.retryAfter = retryAfter;
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addGauge(METRIC_QUEUE_DEPTH, null, null, this::size);
+        adapterMetrics.addCounter(METRIC_QUEUE_REJECTED, null, null, rejections::sum);
+        adapterMetrics.addCounter(METRIC_QUEUE_WAIT_TIME, null, null, () -> TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+        adapterMetrics.addCounter(METRIC_QUEUE_WAIT_COUNT, null, null, waits::sum);
+    }
+
+    @Override
+    public void start()
+    {
+        if (shards.isEmpty()) {
+            return;
+        }
+
+        running = true;
+        executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder()
+                .setNameFormat("prometheus-adapter-ingest-%d")
+                .setDaemon(true)
+                .build());
+        for (BlockingQueue<Task> shard : shards) {
+            executor.execute(() -> drain(shard));
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        if (executor == null) {
+            return;
+        }
+
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Ingest queue did not drain before shutdown, {} series batches were not written", size());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns false and counts a rejection if any shard is full. Used to turn away a request before
+     * any of its work is queued. Nothing is reserved, so work of an admitted request can still
+     * be rejected.
+     */
+    public boolean admit()
+    {
+        for (BlockingQueue<Task> shard : shards) {
+            if (shard.remainingCapacity() == 0) {
+                rejections.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of shards series are split between, which is also the number of partitions
+     * of the per-series state.
+     */
+    public int getShardCount()
+    {
+        return shardLocks.length;
+    }
+
+    /**
+     * Returns the shard that series with the routing hash are routed to.
+     */
+    public int getShard(int hash)
+    {
+        // Spread the high bits of String hash codes into the low ones
+        return Math.floorMod(hash ^ (hash >>> 16), shardLocks.length);
+    }
+
+    private int size()
+    {
+        int size = 0;
+        for (BlockingQueue<Task> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public int getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    /**
+     * Queues the work of a request on the shard, or runs it on the calling thread if the queue is
+     * disabled. A failure of the work is kept in the queued work of the request instead of being thrown.
+     *
+     * @throws QueueFullException if there was no room in the shard within the offer timeout
+     */
+    void submit(int shard, QueuedWork queuedWork, Runnable work)
+    {
+        queuedWork.pending.register();
+        try {
+            submit(shard, () -> {
+                try {
+                    work.run();
+                }
+                catch (Throwable e) {
+                    queuedWork.failure.compareAndSet(null, e);
+                }
+                finally {
+                    queuedWork.pending.arriveAndDeregister();
+                }
+            });
+            queuedWork.queued = true;
+        }
+        catch (RuntimeException e) {
+            queuedWork.pending.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues the work on the shard, or runs it on the calling thread while holding the lock of the
+     * shard if the queue is disabled.
+     *
+     * @throws QueueFullException if there was no room in the shard within the offer timeout
+     */
+    void submit(int shard, Runnable work)
+    {
+        if (shards.isEmpty()) {
+            synchronized (shardLocks[shard]) {
+                work.run();
+            }
+            return;
+        }
+
+        try {
+            if (shards.get(shard).offer(new Task(work, System.nanoTime()), offerTimeout, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejections.increment();
+        throw new QueueFullException();
+    }
+
+    private void drain(BlockingQueue<Task> queue)
+    {
+        while (running || !queue.isEmpty()) {
+            Task task;
+            try {
+                task = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == null) {
+                continue;
+            }
+
+            waitNanos.add(System.nanoTime() - task.queuedAt);
+            waits.increment();
+            try {
+                task.work.run();
+            }
+            catch (Throwable e) {
+                logger.error("Error running queued work", e);
+            }
+        }
+    }
+
+    /**
+     * The work of one request that was handed to the queue. Shared by all work of the request,
+     * including that of the chunks of a split request.
+     */
+    public static class QueuedWork
+    {
+        // The request is a party until it waits, each piece of work until it is done
+        private final Phaser pending = new Phaser(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private volatile boolean queued;
+
+        /**
+         * Returns true if any work of the request was queued, and will be done whatever the request is answered.
+         */
+        public boolean isAnyQueued()
+        {
+            return queued;
+        }
+
+        /**
+         * Waits until all work of the request is done. Called once, after the last work was handed over.
+         */
+        public void awaitDone()
+        {
+            pending.arriveAndAwaitAdvance();
+        }
+
+        /**
+         * Waits until all work of the request is done and throws if any of it failed. Called once,
+         * after the last work was handed over.
+         *
+         * @throws WorkFailedException with the first failure as its cause
+         */
+        public void awaitSuccess()
+        {
+            awaitDone();
+            Throwable e = failure.get();
+            if (e != null) {
+                throw new WorkFailedException(e);
+            }
+        }
+    }
+
+    /**
+     * Thrown when queued work of a request failed.
+     */
+    public static class WorkFailedException extends RuntimeException
+    {
+        WorkFailedException(Throwable cause)
+        {
+            super("Error writing queued series: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Thrown when work could not be queued because the queue is full.
+     */
+    public static class QueueFullException extends RuntimeException
+    {
+        QueueFullException()
+        {
+            super("Ingest queue is full");
+        }
+    }
+
+    private static class Task
+    {
+        private final Runnable work;
+        private final long queuedAt;
+
+        private Task(Runnable work, long queuedAt)
+        {
+            this.work = work;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
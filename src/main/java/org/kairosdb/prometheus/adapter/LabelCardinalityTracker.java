@@ -0,0 +1,238 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds labels whose number of distinct values explodes and strips them from the tags of their metric.
+ * <p>
+ * Each label of a metric gets a small HyperLogLog sketch of its values. A label is stripped once its
+ * estimated number of values goes over the value budget, or once more new values than the growth
+ * rate were seen within a minute. Growth isn't checked during a label's first minute, when all of
+ * its existing values show up at once. A stripped label is logged and recorded as a flight recorder
+ * event.
+ * <p>
+ * The decision is kept in a set per metric, so a stripped label only costs a lookup. Label sets are
+ * only checked when they miss the series tag cache, which is when new values show up. Each metric has
+ * a label version that changes when one of its labels is stripped or the metric is forgotten. Tags
+ * built with an older version are stale, so only the cached tags of that metric are built again, and
+ * the cardinality limiter starts counting the series of the metric anew since their fingerprints
+ * changed.
+ */
+public class LabelCardinalityTracker
+{
+    private static final Logger logger = LoggerFactory.getLogger(LabelCardinalityTracker.class);
+
+    private static final String VALUE_BUDGET_PROP = "kairosdb.plugin.prometheus-adapter.writer.labelValueBudget";
+    private static final String GROWTH_RATE_PROP = "kairosdb.plugin.prometheus-adapter.writer.labelGrowthRate";
+    private static final String MAX_METRICS_PROP = "kairosdb.plugin.prometheus-adapter.writer.labelTrackerMaxMetrics";
+
+    private static final String METRIC_STRIPPED = "kairosdb.prometheus.write-adapter.label-tracker.stripped.count";
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    // 256 registers per label, about 6.5% error
+    private static final int PRECISION = 8;
+    // Labels beyond this many per metric aren't tracked, which bounds the sketches of a metric
+    private static final int MAX_LABELS_PER_METRIC = 64;
+    private static final long GROWTH_INTERVAL = 60000;
+
+    private final int valueBudget;
+    private final int growthRate;
+    private final Cache<String, MetricLabels> metrics;
+    // Source of label versions, increasing across metrics so a forgotten metric never reuses one
+    private final AtomicInteger versions = new AtomicInteger();
+    private final LongAdder stripped = new LongAdder();
+
+    /**
+     * @param valueBudget estimated number of values above which a label is stripped. 0 disables the budget.
+     * @param growthRate  number of new values within a minute above which a label is stripped. 0 disables the rate.
+     * @param maxMetrics  maximum number of metric names whose labels are tracked, the least recently used are forgotten
+     */
+    @Inject
+    public LabelCardinalityTracker(@Named(VALUE_BUDGET_PROP) int valueBudget, @Named(GROWTH_RATE_PROP) int growthRate,
+            @Named(MAX_METRICS_PROP) int maxMetrics, AdapterMetrics adapterMetrics)
+    {
+        checkArgument(valueBudget >= 0, "labelValueBudget must not be negative");
+        checkArgument(growthRate >= 0, "labelGrowthRate must not be negative");
+        this.valueBudget = valueBudget;
+        this.growthRate = growthRate;
+        metrics = CacheBuilder.newBuilder()
+                .maximumSize(isEnabled() ? maxMetrics : 0)
+                // Tags built with the labels of a forgotten metric are built again with the new ones
+                .removalListener((RemovalListener<String, MetricLabels>) removal -> removal.getValue().version = versions.incrementAndGet())
+                .build();
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_STRIPPED, null, null, stripped::sum);
+
+        if (isEnabled()) {
+            logger.info("Stripping labels with more than " + valueBudget + " values or more than " + growthRate
+                    + " new values a minute (0 is unlimited)");
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return valueBudget > 0 || growthRate > 0;
+    }
+
+    /**
+     * Returns the tracked labels of the metric, or null if the tracker is disabled.
+     */
+    MetricLabels getMetricLabels(String metricName)
+    {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        try {
+            return metrics.get(metricName, MetricLabels::new);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the values of the tags to the sketches of the metric and returns the tags without the labels
+     * that are stripped. Returns the same map if no label is stripped.
+     */
+    public ImmutableSortedMap<String, String> filter(String metricName, ImmutableSortedMap<String, String> tags)
+    {
+        MetricLabels labels = getMetricLabels(metricName);
+        return labels != null ? filter(metricName, labels, tags) : tags;
+    }
+
+    /**
+     * Same as {@link #filter(String, ImmutableSortedMap)} with the labels of the metric already looked up.
+     */
+    ImmutableSortedMap<String, String> filter(String metricName, MetricLabels labels, ImmutableSortedMap<String, String> tags)
+    {
+        if (tags.isEmpty()) {
+            return tags;
+        }
+
+        long now = System.currentTimeMillis();
+        ImmutableSortedMap.Builder<String, String> kept = null;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            boolean strip = labels.stripped.contains(tag.getKey()) || observe(metricName, labels, tag.getKey(), tag.getValue(), now);
+            if (strip && kept == null) {
+                // Copy the labels before the first stripped one
+                kept = ImmutableSortedMap.naturalOrder();
+                for (Map.Entry<String, String> previous : tags.headMap(tag.getKey()).entrySet()) {
+                    kept.put(previous);
+                }
+            }
+            else if (!strip && kept != null) {
+                kept.put(tag);
+            }
+        }
+        return kept != null ? kept.build() : tags;
+    }
+
+    /**
+     * Adds the value to the sketch of the label and returns true if the label was stripped because of it.
+     */
+    private boolean observe(String metricName, MetricLabels labels, String labelName, String value, long now)
+    {
+        LabelValues values = labels.values.get(labelName);
+        if (values == null) {
+            if (labels.values.size() >= MAX_LABELS_PER_METRIC) {
+                return false;
+            }
+            values = labels.values.computeIfAbsent(labelName, name -> new LabelValues(now));
+        }
+
+        String reason = values.add(HASH_FUNCTION.hashUnencodedChars(value).asLong(), now);
+        if (reason == null || !labels.stripped.add(labelName)) {
+            return reason != null;
+        }
+
+        long estimate = values.estimate();
+        stripped.increment();
+        logger.warn("Stripping label " + labelName + " of metric " + metricName + " with about " + estimate + " values: " + reason);
+        FlightRecorderEvents.labelStripped(metricName, labelName, estimate, reason);
+        // Series cached with the label would otherwise keep writing it
+        labels.version = versions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The label sketches and stripped labels of one metric.
+     */
+    class MetricLabels
+    {
+        private final ConcurrentMap<String, LabelValues> values = new ConcurrentHashMap<>();
+        private final Set<String> stripped = ConcurrentHashMap.newKeySet();
+        private volatile int version = versions.get();
+
+        /**
+         * Returns the label version, read before filtering tags so a label stripped meanwhile makes them stale.
+         */
+        int getVersion()
+        {
+            return version;
+        }
+    }
+
+    private class LabelValues
+    {
+        private final HyperLogLog sketch = new HyperLogLog(PRECISION);
+        private long estimate;
+        private long intervalStart;
+        // Estimate at the start of the interval, -1 during the first interval
+        private long intervalStartEstimate = -1;
+
+        private LabelValues(long now)
+        {
+            intervalStart = now;
+        }
+
+        /**
+         * Adds the hash of a value and returns the reason the label should be stripped, or null.
+         */
+        private synchronized String add(long hash, long now)
+        {
+            if (now - intervalStart >= GROWTH_INTERVAL) {
+                intervalStart = now;
+                intervalStartEstimate = estimate;
+            }
+            if (!sketch.add(hash)) {
+                return null;
+            }
+
+            estimate = sketch.estimate();
+            if (valueBudget > 0 && estimate > valueBudget) {
+                return "over the budget of " + valueBudget + " values";
+            }
+            if (growthRate > 0 && intervalStartEstimate >= 0 && estimate - intervalStartEstimate > growthRate) {
+                return "over the growth rate of " + growthRate + " new values a minute";
+            }
+            return null;
+        }
+
+        private synchronized long estimate()
+        {
+            return estimate;
+        }
+    }
+}
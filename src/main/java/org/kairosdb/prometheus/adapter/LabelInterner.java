@@ -0,0 +1,138 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Interning table for label names and values, looked up by their raw UTF-8 bytes.
+ * <p>
+ * The same label strings arrive in every request. Looking them up by the encoded bytes returns a
+ * canonical String without decoding the UTF-8 again and without keeping millions of identical
+ * copies alive in tag maps. The table has a fixed number of slots and a new string simply replaces
+ * whatever was in its slot, so high churn values can't grow it. Strings longer than the maximum
+ * length are decoded without being interned.
+ */
+public class LabelInterner
+{
+    private static final String TABLE_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.internTableSize";
+    private static final String MAX_LENGTH_PROP = "kairosdb.plugin.prometheus-adapter.writer.internMaxLength";
+
+    private final Entry[] table;
+    private final int mask;
+    private final int maxLength;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param tableSize number of slots, rounded up to a power of two. 0 disables interning.
+     */
+    @Inject
+    public LabelInterner(@Named(TABLE_SIZE_PROP) int tableSize, @Named(MAX_LENGTH_PROP) int maxLength)
+    {
+        int size = tableSize > 0 ? Integer.highestOneBit(tableSize - 1) << 1 : 0;
+        this.table = new Entry[Math.max(size, 1)];
+        this.mask = table.length - 1;
+        this.maxLength = tableSize > 0 ? maxLength : -1;
+    }
+
+    public boolean isEnabled()
+    {
+        return maxLength >= 0;
+    }
+
+    /**
+     * Returns the string encoded in the given bytes. The bytes must be valid UTF-8.
+     */
+    public String intern(byte[] buffer, int offset, int length)
+            throws InvalidProtocolBufferException
+    {
+        if (length > maxLength) {
+            return decode(buffer, offset, length);
+        }
+
+        int hash = hash(buffer, offset, length);
+        int index = hash & mask;
+        Entry entry = table[index];
+        if (entry != null && entry.hash == hash && entry.matches(buffer, offset, length)) {
+            hits.increment();
+            return entry.value;
+        }
+
+        byte[] bytes = Arrays.copyOfRange(buffer, offset, offset + length);
+        String value = decode(bytes, 0, length);
+        if (entry != null) {
+            evictions.increment();
+        }
+        // Entries are immutable, so a racing reader sees either the old or the new entry
+        table[index] = new Entry(hash, bytes, value);
+        misses.increment();
+        return value;
+    }
+
+    private static String decode(byte[] buffer, int offset, int length)
+            throws InvalidProtocolBufferException
+    {
+        if (!UnsafeByteOperations.unsafeWrap(buffer, offset, length).isValidUtf8()) {
+            throw new InvalidProtocolBufferException("Protocol message had invalid UTF-8.");
+        }
+        return new String(buffer, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] buffer, int offset, int length)
+    {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    private static class Entry
+    {
+        private final int hash;
+        private final byte[] bytes;
+        private final String value;
+
+        private Entry(int hash, byte[] bytes, String value)
+        {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        private boolean matches(byte[] buffer, int offset, int length)
+        {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
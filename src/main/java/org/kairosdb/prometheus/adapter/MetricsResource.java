@@ -0,0 +1,37 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Exposes the adapter's internal metrics in the Prometheus text exposition format, so they can be
+ * scraped directly instead of depending on KairosDB to store them.
+ */
+@Path("api/v1/prometheus/metrics")
+public class MetricsResource
+{
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final AdapterMetrics adapterMetrics;
+
+    @Inject
+    public MetricsResource(AdapterMetrics adapterMetrics)
+    {
+        this.adapterMetrics = checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+    }
+
+    @GET
+    @Produces(CONTENT_TYPE)
+    public Response metrics()
+    {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        adapterMetrics.writePrometheusText(out);
+        return Response.status(Response.Status.OK).type(CONTENT_TYPE).entity(out.toString()).build();
+    }
+}
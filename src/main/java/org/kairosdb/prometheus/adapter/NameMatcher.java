@@ -0,0 +1,200 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.h2.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a name against a whole set of regular expressions at once.
+ * <p>
+ * Most drop rules are anchored literals ({@code ^name$}), prefixes ({@code ^name_.*$}) or suffixes
+ * ({@code ^.*_name$}). Those are compiled into a hash set and two character tries, so they are
+ * decided in a single pass over the name. The remaining expressions are combined into one
+ * alternation so they cost a single regex evaluation instead of one per expression. Expressions
+ * with back references can't be combined and are evaluated on their own.
+ * <p>
+ * The result is the same as calling {@code Pattern.matcher(name).matches()} for each expression.
+ */
+public class NameMatcher
+{
+    private static final String METACHARACTERS = ".[]{}()*+?^$|\\";
+
+    private final Set<String> literals = new HashSet<>();
+    private final TrieNode prefixes = new TrieNode();
+    private final TrieNode suffixes = new TrieNode();
+    private final Pattern combined;
+    private final List<Pattern> separate = new ArrayList<>();
+    private final boolean empty;
+
+    /**
+     * @param expressions comma delimited list of regular expressions
+     */
+    public NameMatcher(String expressions)
+    {
+        List<String> regexes = new ArrayList<>();
+        boolean hasExpressions = false;
+
+        if (!StringUtils.isNullOrEmpty(expressions)) {
+            for (String expression : expressions.split("\\s*,\\s*")) {
+                Pattern.compile(expression); // Fail on invalid expressions just like compiling them one at a time
+                hasExpressions = true;
+                if (!addLiteral(expression)) {
+                    if (expression.matches(".*\\\\([1-9]|k<).*")) {
+                        separate.add(Pattern.compile(expression));
+                    }
+                    else {
+                        regexes.add("(?:" + expression + ")");
+                    }
+                }
+            }
+        }
+
+        combined = regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+        empty = !hasExpressions;
+    }
+
+    public boolean isEmpty()
+    {
+        return empty;
+    }
+
+    public boolean matches(String name)
+    {
+        if (literals.contains(name) || matchesPrefix(name) || matchesSuffix(name)) {
+            return true;
+        }
+        if (combined != null && combined.matcher(name).matches()) {
+            return true;
+        }
+        for (Pattern pattern : separate) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesPrefix(String name)
+    {
+        TrieNode node = prefixes;
+        for (int i = 0; ; i++) {
+            if (node.terminal && !hasLineTerminator(name, i, name.length())) {
+                return true;
+            }
+            if (i == name.length() || (node = node.children.get(name.charAt(i))) == null) {
+                return false;
+            }
+        }
+    }
+
+    private boolean matchesSuffix(String name)
+    {
+        TrieNode node = suffixes;
+        for (int i = name.length(); ; i--) {
+            if (node.terminal && !hasLineTerminator(name, 0, i)) {
+                return true;
+            }
+            if (i == 0 || (node = node.children.get(name.charAt(i - 1))) == null) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds the expression to the literal, prefix or suffix matchers if it is one of those forms.
+     */
+    private boolean addLiteral(String expression)
+    {
+        String body = expression;
+        if (body.startsWith("^")) {
+            body = body.substring(1);
+        }
+        if (body.endsWith("$") && !body.endsWith("\\$")) {
+            body = body.substring(0, body.length() - 1);
+        }
+
+        if (body.endsWith(".*") && !body.endsWith("\\.*")) {
+            String prefix = unescape(body.substring(0, body.length() - 2));
+            if (prefix != null) {
+                prefixes.add(prefix, false);
+                return true;
+            }
+        }
+        else if (body.startsWith(".*")) {
+            String suffix = unescape(body.substring(2));
+            if (suffix != null) {
+                suffixes.add(suffix, true);
+                return true;
+            }
+        }
+        else {
+            String literal = unescape(body);
+            if (literal != null) {
+                literals.add(literal);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the literal text the expression matches, or null if it contains anything other than
+     * plain and escaped characters.
+     */
+    private static String unescape(String expression)
+    {
+        StringBuilder literal = new StringBuilder(expression.length());
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == expression.length() || Character.isLetterOrDigit(expression.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(expression.charAt(++i));
+            }
+            else if (METACHARACTERS.indexOf(c) != -1) {
+                return null;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * ".*" does not match line terminators, so neither may the part of the name it covers.
+     */
+    private static boolean hasLineTerminator(String name, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class TrieNode
+    {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private boolean terminal;
+
+        private void add(String text, boolean reverse)
+        {
+            TrieNode node = this;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(reverse ? text.length() - 1 - i : i);
+                node = node.children.computeIfAbsent(c, k -> new TrieNode());
+            }
+            node.terminal = true;
+        }
+    }
+}
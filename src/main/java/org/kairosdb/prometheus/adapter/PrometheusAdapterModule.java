@@ -8,10 +8,28 @@ public class PrometheusAdapterModule extends AbstractModule
     @Override
     protected void configure()
     {
+        bind(AdapterMetrics.class).in(Singleton.class);
+        bind(RequestHistograms.class).in(Singleton.class);
+        bind(SnappyBlockDecoder.class).in(Singleton.class);
+        bind(LabelInterner.class).in(Singleton.class);
+        bind(SeriesTagCache.class).in(Singleton.class);
+        bind(IngestQueue.class).in(Singleton.class);
+        bind(WriteAheadLog.class).in(Singleton.class);
+        bind(BatchPublisher.class).in(Singleton.class);
+        bind(RequestSplitter.class).in(Singleton.class);
+        bind(HaDeduplicator.class).in(Singleton.class);
+        bind(HighWaterMarks.class).in(Singleton.class);
+        bind(RetryCache.class).in(Singleton.class);
+        bind(CardinalityLimiter.class).in(Singleton.class);
+        bind(LabelCardinalityTracker.class).in(Singleton.class);
+        bind(RelabelEngine.class).in(Singleton.class);
+        bind(ErrorDiagnostics.class).in(Singleton.class);
         bind(ProtocolBufferMessageBodyProvider.class).in(Singleton.class);
+        bind(TimeSeriesStreamProvider.class).in(Singleton.class);
 
 //        bind(ReadAdapterResource.class).in(Singleton.class);
 
         bind(WriteAdapterResource.class).in(Singleton.class);
+        bind(MetricsResource.class).in(Singleton.class);
     }
 }
@@ -0,0 +1,188 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.kairosdb.core.datapoints.DataPointHelper;
+import prometheus.Types.TimeSeries;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * All buckets, the sum and the count of a classic Prometheus histogram at one timestamp, stored as a
+ * single data point instead of one data point per series. The "le" bounds are kept as they were
+ * sent, ordered by their value, with their cumulative counts. A missing sum or count is NaN.
+ */
+public class PrometheusHistogramDataPoint extends DataPointHelper
+{
+    public static final String API_TYPE = "prometheus_histogram";
+    public static final String DATASTORE_TYPE = "kairos_prometheus_histogram";
+
+    private static final String BUCKET_SUFFIX = "_bucket";
+    private static final String SUM_SUFFIX = "_sum";
+    private static final String COUNT_SUFFIX = "_count";
+
+    private final String[] bounds;
+    private final double[] counts;
+    private final double sum;
+    private final double count;
+
+    public PrometheusHistogramDataPoint(long timestamp, String[] bounds, double[] counts, double sum, double count)
+    {
+        super(timestamp);
+        this.bounds = bounds;
+        this.counts = counts;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public String[] getBounds()
+    {
+        return bounds;
+    }
+
+    public double[] getCounts()
+    {
+        return counts;
+    }
+
+    public double getSum()
+    {
+        return sum;
+    }
+
+    public double getCount()
+    {
+        return count;
+    }
+
+    @Override
+    public void writeValueToBuffer(DataOutput buffer)
+            throws IOException
+    {
+        buffer.writeInt(bounds.length);
+        for (int i = 0; i < bounds.length; i++) {
+            buffer.writeUTF(bounds[i]);
+            buffer.writeDouble(counts[i]);
+        }
+        buffer.writeDouble(sum);
+        buffer.writeDouble(count);
+    }
+
+    @Override
+    public void writeValueToJson(JSONWriter writer)
+            throws JSONException
+    {
+        writer.object();
+        writer.key("buckets").object();
+        for (int i = 0; i < bounds.length; i++) {
+            writer.key(bounds[i]).value(counts[i]);
+        }
+        writer.endObject();
+        // JSON has no NaN, a missing sum or count is left out
+        if (!Double.isNaN(sum)) {
+            writer.key("sum").value(sum);
+        }
+        if (!Double.isNaN(count)) {
+            writer.key("count").value(count);
+        }
+        writer.endObject();
+    }
+
+    @Override
+    public String getApiDataType()
+    {
+        return API_TYPE;
+    }
+
+    @Override
+    public String getDataStoreDataType()
+    {
+        return DATASTORE_TYPE;
+    }
+
+    @Override
+    public boolean isLong()
+    {
+        return false;
+    }
+
+    @Override
+    public long getLongValue()
+    {
+        return (long) count;
+    }
+
+    @Override
+    public boolean isDouble()
+    {
+        return false;
+    }
+
+    @Override
+    public double getDoubleValue()
+    {
+        return count;
+    }
+
+    /**
+     * Adds the buckets, sum and count as samples of the _bucket, _sum and _count series they were written
+     * from. The series are created from the template, whose first label is the metric name, and kept in
+     * the map by their metric name and bound so the samples of each timestamp are added to the same series.
+     */
+    void expand(TimeSeries.Builder template, Map<String, TimeSeries.Builder> series)
+    {
+        String metricName = template.getLabels(0).getValue();
+        for (int i = 0; i < bounds.length; i++) {
+            TimeSeries.Builder bucket = series.get(bounds[i]);
+            if (bucket == null) {
+                bucket = template.clone().clearSamples();
+                bucket.getLabelsBuilder(0).setValue(metricName + BUCKET_SUFFIX);
+                bucket.addLabelsBuilder().setName("le").setValue(bounds[i]);
+                series.put(bounds[i], bucket);
+            }
+            bucket.addSamplesBuilder().setTimestamp(getTimestamp()).setValue(counts[i]);
+        }
+        if (!Double.isNaN(sum)) {
+            series.computeIfAbsent(SUM_SUFFIX, suffix -> renamed(template, metricName + suffix))
+                    .addSamplesBuilder().setTimestamp(getTimestamp()).setValue(sum);
+        }
+        if (!Double.isNaN(count)) {
+            series.computeIfAbsent(COUNT_SUFFIX, suffix -> renamed(template, metricName + suffix))
+                    .addSamplesBuilder().setTimestamp(getTimestamp()).setValue(count);
+        }
+    }
+
+    private static TimeSeries.Builder renamed(TimeSeries.Builder template, String metricName)
+    {
+        TimeSeries.Builder builder = template.clone().clearSamples();
+        builder.getLabelsBuilder(0).setValue(metricName);
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o == null || getClass() != o.getClass() || !super.equals(o)) {
+            return false;
+        }
+        PrometheusHistogramDataPoint that = (PrometheusHistogramDataPoint) o;
+        return Arrays.equals(bounds, that.bounds) && Arrays.equals(counts, that.counts)
+                && Double.compare(sum, that.sum) == 0 && Double.compare(count, that.count) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * super.hashCode() + Arrays.hashCode(counts);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PrometheusHistogramDataPoint{timestamp=" + getTimestamp() + ", bounds=" + Arrays.toString(bounds)
+                + ", counts=" + Arrays.toString(counts) + ", sum=" + sum + ", count=" + count + "}";
+    }
+}
@@ -0,0 +1,77 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DataPointFactory;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads {@link PrometheusHistogramDataPoint}s from the datastore and from JSON. Registered with KairosDB
+ * under the prometheus_histogram type in prometheus-adapter.properties.
+ */
+public class PrometheusHistogramDataPointFactory implements DataPointFactory
+{
+    @Override
+    public String getDataStoreType()
+    {
+        return PrometheusHistogramDataPoint.DATASTORE_TYPE;
+    }
+
+    @Override
+    public String getGroupType()
+    {
+        return PrometheusHistogramDataPoint.API_TYPE;
+    }
+
+    @Override
+    public DataPoint getDataPoint(long timestamp, JsonElement json)
+            throws IOException
+    {
+        if (!json.isJsonObject() || !json.getAsJsonObject().has("buckets") || !json.getAsJsonObject().get("buckets").isJsonObject()) {
+            throw new IOException("JSON object is not a valid prometheus histogram data point");
+        }
+        JsonObject object = json.getAsJsonObject();
+
+        TreeMap<Double, Map.Entry<String, JsonElement>> buckets = new TreeMap<>();
+        for (Map.Entry<String, JsonElement> bucket : object.getAsJsonObject("buckets").entrySet()) {
+            Double bound = HistogramCollector.parseBound(bucket.getKey());
+            if (bound == null) {
+                throw new IOException("Invalid histogram bucket bound " + bucket.getKey());
+            }
+            buckets.put(bound, bucket);
+        }
+
+        String[] bounds = new String[buckets.size()];
+        double[] counts = new double[buckets.size()];
+        int i = 0;
+        for (Map.Entry<String, JsonElement> bucket : buckets.values()) {
+            bounds[i] = bucket.getKey();
+            counts[i] = bucket.getValue().getAsDouble();
+            i++;
+        }
+        double sum = object.has("sum") ? object.get("sum").getAsDouble() : Double.NaN;
+        double count = object.has("count") ? object.get("count").getAsDouble() : Double.NaN;
+        return new PrometheusHistogramDataPoint(timestamp, bounds, counts, sum, count);
+    }
+
+    @Override
+    public DataPoint getDataPoint(long timestamp, DataInput buffer)
+            throws IOException
+    {
+        int length = buffer.readInt();
+        String[] bounds = new String[length];
+        double[] counts = new double[length];
+        for (int i = 0; i < length; i++) {
+            bounds[i] = buffer.readUTF();
+            counts[i] = buffer.readDouble();
+        }
+        double sum = buffer.readDouble();
+        double count = buffer.readDouble();
+        return new PrometheusHistogramDataPoint(timestamp, bounds, counts, sum, count);
+    }
+}
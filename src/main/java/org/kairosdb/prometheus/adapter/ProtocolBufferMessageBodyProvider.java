@@ -16,11 +16,11 @@ package org.kairosdb.prometheus.adapter;
  * limitations under the License.
  */
 
+import com.google.inject.Inject;
 import com.google.protobuf.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xerial.snappy.SnappyFramedOutputStream;
-import org.xerial.snappy.SnappyInputStream;
 import prometheus.Remote.ReadResponse;
 
 import javax.ws.rs.Consumes;
@@ -40,6 +40,8 @@ import java.lang.reflect.Type;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * A Jersey provider which enables using Protocol Buffers to parse request entities into objects and
  * generate response entities from objects.
@@ -59,6 +61,13 @@ public class ProtocolBufferMessageBodyProvider
     private static final Logger logger = LoggerFactory.getLogger(ProtocolBufferMessageBodyProvider.class);
 
     private final Map<Class<Message>, Method> methodCache = new ConcurrentHashMap<>();
+    private final SnappyBlockDecoder decoder;
+
+    @Inject
+    public ProtocolBufferMessageBodyProvider(SnappyBlockDecoder decoder)
+    {
+        this.decoder = checkNotNull(decoder, "decoder must not be null");
+    }
 
     @Override
     public boolean isReadable(
@@ -79,9 +88,12 @@ public class ProtocolBufferMessageBodyProvider
             final MultivaluedMap<String, String> httpHeaders,
             final InputStream entityStream)
     {
-
-        try {
-            SnappyInputStream uncompressStream = new SnappyInputStream(entityStream);
+        FlightRecorderEvents.Decode event = FlightRecorderEvents.beginDecode();
+        long start = System.nanoTime();
+        try (SnappyBlockDecoder.Buffer buffer = decoder.read(entityStream)) {
+            long readEnd = System.nanoTime();
+            buffer.uncompress();
+            long decompressEnd = System.nanoTime();
 
             final Method newBuilder =
                     methodCache.computeIfAbsent(
@@ -96,11 +108,25 @@ public class ProtocolBufferMessageBodyProvider
                             });
 
             final Message.Builder builder = (Message.Builder) newBuilder.invoke(type);
-            return builder.mergeFrom(uncompressStream).build();
+            Message message = builder.mergeFrom(buffer.newCodedInputStream()).build();
+            if (event != null) {
+                event.messageType = type.getSimpleName();
+                event.compressedBytes = buffer.getCompressedLength();
+                event.uncompressedBytes = buffer.getUncompressedLength();
+                event.readDuration = readEnd - start;
+                event.decompressDuration = decompressEnd - readEnd;
+                event.parseDuration = System.nanoTime() - decompressEnd;
+            }
+            return message;
         }
         catch (Exception e) {
             throw new WebApplicationException(e);
         }
+        finally {
+            if (event != null) {
+                event.commit();
+            }
+        }
     }
 
     @Override
@@ -27,7 +27,9 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -62,6 +64,7 @@ public class ReadAdapterResource
     @Path("/read")
     public ReadResponse read(ReadRequest request)
     {
+        FlightRecorderEvents.Read event = FlightRecorderEvents.beginRead();
         ReadResponse.Builder responseBuilder = ReadResponse.newBuilder();
 //        for (Query query : request.getQueriesList()) {
 //            String metricName = null;
@@ -103,6 +106,16 @@ public class ReadAdapterResource
         timeSeriesBuilder.addSamplesBuilder().setTimestamp(1538416287033L).setValue(10);
 
         ReadResponse response = responseBuilder.build();
+        if (event != null) {
+            event.queries = request.getQueriesCount();
+            for (QueryResult result : response.getResultsList()) {
+                event.series += result.getTimeseriesCount();
+                for (TimeSeries timeSeries : result.getTimeseriesList()) {
+                    event.samples += timeSeries.getSamplesCount();
+                }
+            }
+            event.commit();
+        }
 
         logger.info("response = " + response);
         return response;
@@ -137,11 +150,22 @@ public class ReadAdapterResource
             }
 
             boolean foundDatapoints = false;
+            Map<String, TimeSeries.Builder> histogramSeries = null;
             while(result.hasNext())
             {
                 // Add data points
                 DataPoint dataPoint = result.next();
 //                logger.info("datapoint: " + dataPoint.getDoubleValue());
+                if (dataPoint instanceof PrometheusHistogramDataPoint)
+                {
+                    // Collapsed histograms are expanded back into their _bucket, _sum and _count series
+                    if (histogramSeries == null)
+                    {
+                        histogramSeries = new LinkedHashMap<>();
+                    }
+                    ((PrometheusHistogramDataPoint) dataPoint).expand(timeSeriesBuilder, histogramSeries);
+                    continue;
+                }
                 timeSeriesBuilder.addSamplesBuilder()
                         .setTimestamp(dataPoint.getTimestamp())
                         .setValue(dataPoint.getDoubleValue());
@@ -152,6 +176,13 @@ public class ReadAdapterResource
             {
                 builder.addTimeseries(timeSeriesBuilder);
             }
+            if (histogramSeries != null)
+            {
+                for (TimeSeries.Builder series : histogramSeries.values())
+                {
+                    builder.addTimeseries(series);
+                }
+            }
         }
         return builder.build();
     }
@@ -0,0 +1,29 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One entry of a relabel configuration file, with the fields and defaults of a Prometheus
+ * relabel_config.
+ */
+class RelabelConfig
+{
+    @SerializedName("source_labels")
+    List<String> sourceLabels = new ArrayList<>();
+
+    String separator = ";";
+
+    String regex = "(.*)";
+
+    @SerializedName("target_label")
+    String targetLabel = "";
+
+    String replacement = "$1";
+
+    long modulus;
+
+    String action = "replace";
+}
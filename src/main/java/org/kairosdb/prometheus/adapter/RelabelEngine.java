@@ -0,0 +1,459 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.h2.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import prometheus.Types.Label;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Applies Prometheus relabel_config rules to the labels of a time series before its tags are built.
+ * <p>
+ * The rules are read from a JSON array in the configuration file, with the field names and defaults
+ * of Prometheus. The keep, drop, replace, hashmod, labelmap, labeldrop and labelkeep actions are
+ * supported. Regexes are anchored on both ends and compiled once, replacement templates are parsed
+ * into their literal and group parts, so applying a rule only resets a matcher kept per thread.
+ * Rules work on arrays of the raw label names and values and a new label list is only built if a
+ * rule changed them. The result for a label set is memoized with its tags in the series tag cache.
+ * An empty file name disables relabeling.
+ */
+public class RelabelEngine
+{
+    private static final Logger logger = LoggerFactory.getLogger(RelabelEngine.class);
+
+    private static final String CONFIG_FILE_PROP = "kairosdb.plugin.prometheus-adapter.writer.relabelConfigFile";
+
+    private static final String METRIC_DROPPED = "kairosdb.prometheus.write-adapter.relabel.dropped.count";
+
+    // Prometheus picks hashmod buckets from an MD5 of the source values, so only MD5 gives the same buckets
+    @SuppressWarnings("deprecation")
+    private static final HashFunction MD5 = Hashing.md5();
+    private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    private final Rule[] rules;
+    private final ThreadLocal<LabelBuffer> buffers;
+    private final LongAdder dropped = new LongAdder();
+
+    @Inject
+    public RelabelEngine(@Named(CONFIG_FILE_PROP) String configFile, AdapterMetrics adapterMetrics)
+    {
+        this(readConfigs(configFile), adapterMetrics);
+        if (rules.length > 0) {
+            logger.info("Relabeling time series with " + rules.length + " rules from " + configFile);
+        }
+    }
+
+    RelabelEngine(List<RelabelConfig> configs, AdapterMetrics adapterMetrics)
+    {
+        rules = new Rule[configs.size()];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = new Rule(configs.get(i));
+        }
+        buffers = ThreadLocal.withInitial(() -> new LabelBuffer(rules));
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_DROPPED, null, null, dropped::sum);
+    }
+
+    /**
+     * Parses a JSON array of relabel configs.
+     */
+    static List<RelabelConfig> parseConfigs(Reader reader)
+    {
+        RelabelConfig[] configs = new Gson().fromJson(reader, RelabelConfig[].class);
+        return configs != null ? Arrays.asList(configs) : new ArrayList<>();
+    }
+
+    private static List<RelabelConfig> readConfigs(String configFile)
+    {
+        if (StringUtils.isNullOrEmpty(configFile)) {
+            return new ArrayList<>();
+        }
+        try (Reader reader = Files.newBufferedReader(Paths.get(configFile), StandardCharsets.UTF_8)) {
+            return parseConfigs(reader);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to read relabel config file " + configFile, e);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid relabel config file " + configFile, e);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return rules.length > 0;
+    }
+
+    /**
+     * Returns the relabeled labels, the same list if no rule changed them, or null if a rule dropped the series.
+     */
+    public List<Label> relabel(List<Label> labels)
+    {
+        if (rules.length == 0) {
+            return labels;
+        }
+
+        LabelBuffer buffer = buffers.get();
+        buffer.load(labels);
+        for (int i = 0; i < rules.length; i++) {
+            if (!rules[i].apply(buffer, buffer.matchers[i])) {
+                dropped.increment();
+                return null;
+            }
+        }
+        return buffer.modified ? buffer.toLabels() : labels;
+    }
+
+    private static boolean isLabelName(CharSequence name)
+    {
+        return LABEL_NAME.matcher(name).matches();
+    }
+
+    private enum Action
+    {
+        REPLACE, KEEP, DROP, HASHMOD, LABELMAP, LABELDROP, LABELKEEP
+    }
+
+    private static class Rule
+    {
+        private final Action action;
+        private final String[] sourceLabels;
+        private final String separator;
+        private final Pattern regex;
+        private final Template targetLabel;
+        private final Template replacement;
+        private final long modulus;
+
+        private Rule(RelabelConfig config)
+        {
+            Action action;
+            try {
+                action = Action.valueOf(config.action.toUpperCase(Locale.ROOT));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown relabel action " + config.action);
+            }
+            this.action = action;
+            sourceLabels = config.sourceLabels.toArray(new String[0]);
+            separator = config.separator;
+            regex = Pattern.compile("^(?:" + config.regex + ")$");
+            targetLabel = new Template(config.targetLabel);
+            replacement = new Template(config.replacement);
+            modulus = config.modulus;
+
+            if (action == Action.REPLACE || action == Action.HASHMOD) {
+                checkArgument(!config.targetLabel.isEmpty(), "relabel action %s requires a target_label", config.action);
+            }
+            if (action == Action.REPLACE) {
+                checkArgument(isLabelName(config.targetLabel) || config.targetLabel.contains("$"),
+                        "%s is an invalid target_label for relabel action replace", config.targetLabel);
+            }
+            if (action == Action.HASHMOD) {
+                checkArgument(isLabelName(config.targetLabel), "%s is an invalid target_label for relabel action hashmod",
+                        config.targetLabel);
+                checkArgument(modulus > 0, "relabel action hashmod requires a modulus greater than 0");
+            }
+        }
+
+        /**
+         * Applies the rule to the labels in the buffer and returns false if the series is dropped.
+         */
+        private boolean apply(LabelBuffer buffer, Matcher matcher)
+        {
+            switch (action) {
+                case KEEP:
+                    return matcher.reset(buffer.sourceValue(sourceLabels, separator)).matches();
+                case DROP:
+                    return !matcher.reset(buffer.sourceValue(sourceLabels, separator)).matches();
+                case REPLACE: {
+                    CharSequence value = buffer.sourceValue(sourceLabels, separator);
+                    if (!matcher.reset(value).matches()) {
+                        return true;
+                    }
+                    String target = targetLabel.isLiteral() ? targetLabel.literal : targetLabel.expand(matcher, value);
+                    if (!isLabelName(target)) {
+                        return true;
+                    }
+                    buffer.set(target, replacement.expand(matcher, value));
+                    return true;
+                }
+                case HASHMOD: {
+                    CharSequence value = buffer.sourceValue(sourceLabels, separator);
+                    // Same bucket as Prometheus, which takes the last 8 bytes of the MD5 as a big endian number
+                    byte[] hash = MD5.hashString(value, StandardCharsets.UTF_8).asBytes();
+                    long sum = 0;
+                    for (int i = 8; i < 16; i++) {
+                        sum = (sum << 8) | (hash[i] & 0xFF);
+                    }
+                    buffer.set(targetLabel.literal, Long.toString(Long.remainderUnsigned(sum, modulus)));
+                    return true;
+                }
+                case LABELMAP: {
+                    int size = buffer.size;
+                    for (int i = 0; i < size; i++) {
+                        String name = buffer.names[i];
+                        if (!buffer.values[i].isEmpty() && matcher.reset(name).matches()) {
+                            buffer.set(replacement.expand(matcher, name), buffer.values[i]);
+                        }
+                    }
+                    return true;
+                }
+                case LABELDROP:
+                case LABELKEEP: {
+                    boolean keepMatches = action == Action.LABELKEEP;
+                    for (int i = buffer.size - 1; i >= 0; i--) {
+                        if (matcher.reset(buffer.names[i]).matches() != keepMatches) {
+                            buffer.remove(i);
+                        }
+                    }
+                    return true;
+                }
+                default:
+                    throw new IllegalStateException("Unknown relabel action " + action);
+            }
+        }
+    }
+
+    /**
+     * A replacement or target label template with Go regexp expansion syntax: $1, ${1}, $name and
+     * ${name} refer to groups, $$ is a dollar sign. Groups that don't exist expand to nothing.
+     */
+    private static class Template
+    {
+        private final String literal;
+        private final List<Object> parts = new ArrayList<>();
+
+        private Template(String template)
+        {
+            StringBuilder text = new StringBuilder();
+            int i = 0;
+            while (i < template.length()) {
+                char c = template.charAt(i);
+                if (c != '$' || i + 1 == template.length()) {
+                    text.append(c);
+                    i++;
+                    continue;
+                }
+                if (template.charAt(i + 1) == '$') {
+                    text.append('$');
+                    i += 2;
+                    continue;
+                }
+
+                boolean braces = template.charAt(i + 1) == '{';
+                int start = braces ? i + 2 : i + 1;
+                int end = start;
+                while (end < template.length() && isNameChar(template.charAt(end))) {
+                    end++;
+                }
+                if (end == start || (braces && (end == template.length() || template.charAt(end) != '}'))) {
+                    // Malformed, the dollar sign is kept as text
+                    text.append(c);
+                    i++;
+                    continue;
+                }
+
+                if (text.length() > 0) {
+                    parts.add(text.toString());
+                    text.setLength(0);
+                }
+                String name = template.substring(start, end);
+                parts.add(name.chars().allMatch(Character::isDigit) ? (Object) Integer.valueOf(name) : new GroupName(name));
+                i = braces ? end + 1 : end;
+            }
+            if (text.length() > 0) {
+                parts.add(text.toString());
+            }
+            literal = parts.isEmpty() ? "" : parts.size() == 1 && parts.get(0) instanceof String ? (String) parts.get(0) : null;
+        }
+
+        private static boolean isNameChar(char c)
+        {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+
+        private boolean isLiteral()
+        {
+            return literal != null;
+        }
+
+        private String expand(Matcher matcher, CharSequence input)
+        {
+            if (literal != null) {
+                return literal;
+            }
+            StringBuilder out = new StringBuilder();
+            for (Object part : parts) {
+                if (part instanceof String) {
+                    out.append((String) part);
+                }
+                else if (part instanceof Integer) {
+                    int group = (Integer) part;
+                    if (group <= matcher.groupCount() && matcher.start(group) != -1) {
+                        out.append(input, matcher.start(group), matcher.end(group));
+                    }
+                }
+                else {
+                    try {
+                        String value = matcher.group(((GroupName) part).name);
+                        if (value != null) {
+                            out.append(value);
+                        }
+                    }
+                    catch (IllegalArgumentException e) {
+                        // No group with that name
+                    }
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    private static class GroupName
+    {
+        private final String name;
+
+        private GroupName(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The labels of the series being relabeled, reused by each thread along with a matcher per rule.
+     */
+    private static class LabelBuffer
+    {
+        private final Matcher[] matchers;
+        private final StringBuilder joined = new StringBuilder();
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int size;
+        private boolean modified;
+
+        private LabelBuffer(Rule[] rules)
+        {
+            matchers = new Matcher[rules.length];
+            for (int i = 0; i < rules.length; i++) {
+                matchers[i] = rules[i].regex.matcher("");
+            }
+        }
+
+        private void load(List<Label> labels)
+        {
+            size = 0;
+            modified = false;
+            ensureCapacity(labels.size());
+            for (Label label : labels) {
+                names[size] = label.getName();
+                values[size] = label.getValue();
+                size++;
+            }
+        }
+
+        private String get(String name)
+        {
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            return "";
+        }
+
+        /**
+         * Returns the values of the source labels joined by the separator. The result is only valid until the next call.
+         */
+        private CharSequence sourceValue(String[] sourceLabels, String separator)
+        {
+            if (sourceLabels.length == 1) {
+                return get(sourceLabels[0]);
+            }
+            joined.setLength(0);
+            for (int i = 0; i < sourceLabels.length; i++) {
+                if (i > 0) {
+                    joined.append(separator);
+                }
+                joined.append(get(sourceLabels[i]));
+            }
+            return joined;
+        }
+
+        /**
+         * Sets the value of the label, an empty value removes it like it does in Prometheus.
+         */
+        private void set(String name, String value)
+        {
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    if (value.isEmpty()) {
+                        remove(i);
+                    }
+                    else if (!values[i].equals(value)) {
+                        values[i] = value;
+                        modified = true;
+                    }
+                    return;
+                }
+            }
+            if (!value.isEmpty()) {
+                ensureCapacity(size + 1);
+                names[size] = name;
+                values[size] = value;
+                size++;
+                modified = true;
+            }
+        }
+
+        private void remove(int index)
+        {
+            System.arraycopy(names, index + 1, names, index, size - index - 1);
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            names[size] = null;
+            values[size] = null;
+            modified = true;
+        }
+
+        private void ensureCapacity(int capacity)
+        {
+            if (capacity > names.length) {
+                int length = Math.max(capacity, names.length * 2);
+                names = Arrays.copyOf(names, length);
+                values = Arrays.copyOf(values, length);
+            }
+        }
+
+        private List<Label> toLabels()
+        {
+            List<Label> labels = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                labels.add(Label.newBuilder().setName(names[i]).setValue(values[i]).build());
+            }
+            return labels;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Latency and size distributions of remote write requests, shared by the components that handle
+ * each phase. Phase times are recorded in microseconds:
+ * <ul>
+ * <li>read - reading the compressed body</li>
+ * <li>decompress - snappy decompression</li>
+ * <li>parse - parsing the whole WriteRequest, only when streaming is off</li>
+ * <li>filter - building the tags of a label set that isn't cached, including the drop regexes</li>
+ * <li>process - turning the series into data points, including parsing when streaming is on</li>
+ * <li>flush - waiting for the batches of a request to be published</li>
+ * <li>publish - posting one batch to the event bus</li>
+ * <li>write - the whole write request, after the body was read</li>
+ * </ul>
+ * The number of data points in each published batch is recorded as well.
+ */
+public class RequestHistograms
+{
+    private static final String METRIC_PHASE_TIME = "kairosdb.prometheus.write-adapter.phase.time";
+    private static final String METRIC_REQUEST_SIZE = "kairosdb.prometheus.write-adapter.request.size";
+    private static final String METRIC_REQUEST_SERIES = "kairosdb.prometheus.write-adapter.request.series";
+    private static final String METRIC_REQUEST_SAMPLES = "kairosdb.prometheus.write-adapter.request.samples";
+    private static final String METRIC_BATCH_SIZE = "kairosdb.prometheus.write-adapter.publish.batch.size";
+
+    final Histogram read = new Histogram();
+    final Histogram decompress = new Histogram();
+    final Histogram parse = new Histogram();
+    final Histogram filter = new Histogram();
+    final Histogram process = new Histogram();
+    final Histogram flush = new Histogram();
+    final Histogram publish = new Histogram();
+    final Histogram write = new Histogram();
+    final Histogram compressedBytes = new Histogram();
+    final Histogram uncompressedBytes = new Histogram();
+    final Histogram series = new Histogram();
+    final Histogram samples = new Histogram();
+    final Histogram batchSize = new Histogram();
+
+    @Inject
+    public RequestHistograms(AdapterMetrics adapterMetrics)
+    {
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "read", read);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "decompress", decompress);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "parse", parse);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "filter", filter);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "process", process);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "flush", flush);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "publish", publish);
+        adapterMetrics.addHistogram(METRIC_PHASE_TIME, "phase", "write", write);
+        adapterMetrics.addHistogram(METRIC_REQUEST_SIZE, "body", "compressed", compressedBytes);
+        adapterMetrics.addHistogram(METRIC_REQUEST_SIZE, "body", "uncompressed", uncompressedBytes);
+        adapterMetrics.addHistogram(METRIC_REQUEST_SERIES, null, null, series);
+        adapterMetrics.addHistogram(METRIC_REQUEST_SAMPLES, null, null, samples);
+        adapterMetrics.addHistogram(METRIC_BATCH_SIZE, null, null, batchSize);
+    }
+
+    /**
+     * Records the microseconds since the start, taken from System.nanoTime(), and returns the current time.
+     */
+    static long recordSince(Histogram histogram, long startNanos)
+    {
+        long now = System.nanoTime();
+        histogram.record((now - startNanos) / 1000);
+        return now;
+    }
+}
@@ -0,0 +1,131 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.KairosDBService;
+import prometheus.Types.TimeSeries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Splits the time series of large write requests into chunks that are routed in parallel.
+ * <p>
+ * Without splitting, a single remote write shard sending huge requests hands its series to the
+ * {@link IngestQueue} from one thread, and when the queue is disabled writes them all on that thread.
+ * Requests with at least the threshold number of series are cut into chunks and each chunk is handed
+ * to the shards of its series on a work stealing pool. Smaller requests stay on the request thread.
+ * A threshold of 0 disables splitting.
+ */
+public class RequestSplitter implements KairosDBService
+{
+    private static final String THRESHOLD_PROP = "kairosdb.plugin.prometheus-adapter.writer.parallelThreshold";
+    private static final String CHUNK_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.parallelChunkSize";
+    private static final String PARALLELISM_PROP = "kairosdb.plugin.prometheus-adapter.writer.parallelism";
+
+    private static final String METRIC_SPLIT_REQUESTS = "kairosdb.prometheus.write-adapter.parallel.request.count";
+    private static final String METRIC_CHUNKS = "kairosdb.prometheus.write-adapter.parallel.chunk.count";
+
+    private final int threshold;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+    private final LongAdder splitRequests = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+
+    /**
+     * @param parallelism number of threads in the pool. 0 uses the number of available processors.
+     */
+    @Inject
+    public RequestSplitter(@Named(THRESHOLD_PROP) int threshold, @Named(CHUNK_SIZE_PROP) int chunkSize,
+            @Named(PARALLELISM_PROP) int parallelism, AdapterMetrics adapterMetrics)
+    {
+        checkArgument(threshold >= 0, "parallelThreshold must not be negative");
+        checkArgument(chunkSize > 0, "parallelChunkSize must be greater than 0");
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+        this.pool = threshold > 0 ? new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors()) : null;
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_SPLIT_REQUESTS, null, null, splitRequests::sum);
+        adapterMetrics.addCounter(METRIC_CHUNKS, null, null, chunks::sum);
+    }
+
+    @Override
+    public void start()
+    {
+    }
+
+    @Override
+    public void stop()
+    {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns true if a request with this many time series should be split.
+     */
+    public boolean shouldSplit(int timeSeriesCount)
+    {
+        return pool != null && timeSeriesCount >= threshold && timeSeriesCount > chunkSize;
+    }
+
+    /**
+     * Hands each chunk of the time series to the writer on the pool and returns once all chunks are
+     * done. The first failure of a chunk is rethrown after all chunks are done.
+     */
+    void write(List<TimeSeries> timeSeries, Consumer<List<TimeSeries>> writer)
+    {
+        List<List<TimeSeries>> partitions = Lists.partition(timeSeries, chunkSize);
+        List<Future<?>> futures = new ArrayList<>(partitions.size());
+        // Failures are caught in the task, a ForkJoinPool would otherwise rethrow a copy of the exception
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (List<TimeSeries> partition : partitions) {
+            futures.add(pool.submit(() -> {
+                try {
+                    writer.accept(partition);
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        splitRequests.increment();
+        chunks.add(partitions.size());
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while writing time series", e);
+            }
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Digests of request bodies that were written recently.
+ * <p>
+ * When KairosDB is slow Prometheus times out and sends the exact same compressed body again. A body
+ * whose digest was written within the window is acknowledged without decoding or publishing it. A
+ * digest is only added once its request was written successfully. A window of 0 disables the cache.
+ */
+public class RetryCache
+{
+    private static final String WINDOW_PROP = "kairosdb.plugin.prometheus-adapter.writer.retryCacheWindow";
+    private static final String SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.retryCacheSize";
+
+    private static final String METRIC_HITS = "kairosdb.prometheus.write-adapter.retry-cache.hit.count";
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Cache<HashCode, Boolean> cache;
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param window milliseconds a digest is kept after its request was written. 0 disables the cache.
+     * @param size   maximum number of digests kept
+     */
+    @Inject
+    public RetryCache(@Named(WINDOW_PROP) long window, @Named(SIZE_PROP) int size, AdapterMetrics adapterMetrics)
+    {
+        cache = window > 0 ? CacheBuilder.newBuilder()
+                .expireAfterWrite(window, TimeUnit.MILLISECONDS)
+                .maximumSize(size)
+                .build() : null;
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_HITS, null, null, hits::sum);
+    }
+
+    /**
+     * Returns the digest of the compressed body or null if the cache is disabled.
+     */
+    public HashCode digest(SnappyBlockDecoder.Buffer buffer)
+    {
+        return cache != null ? buffer.hashCompressed(HASH_FUNCTION) : null;
+    }
+
+    /**
+     * Returns true and counts a hit if a body with the digest was written within the window.
+     */
+    public boolean isRetry(HashCode digest)
+    {
+        if (digest == null || cache.getIfPresent(digest) == null) {
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    public void put(HashCode digest)
+    {
+        if (digest != null) {
+            cache.put(digest, Boolean.TRUE);
+        }
+    }
+}
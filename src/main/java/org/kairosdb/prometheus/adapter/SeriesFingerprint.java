@@ -0,0 +1,33 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * 64 bit hash identifying a KairosDB series by its metric name and tags. Used to route a series to
+ * the same shard every time and to key per-series state.
+ */
+final class SeriesFingerprint
+{
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private SeriesFingerprint()
+    {
+    }
+
+    static long of(String metricName, SortedMap<String, String> tags)
+    {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        hasher.putUnencodedChars(metricName);
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            // Separators keep {a="bc"} and {ab="c"} apart
+            hasher.putChar('\u0000').putUnencodedChars(tag.getKey());
+            hasher.putChar('\u0001').putUnencodedChars(tag.getValue());
+        }
+        return hasher.hash().asLong();
+    }
+}
@@ -0,0 +1,114 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import prometheus.Types.Label;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded cache from the raw label set of a time series to the tags built from it. Prometheus
+ * sends the same label sets on every scrape, so steady state ingest reuses the tag maps instead of
+ * sorting and allocating new ones for each request. A size of 0 disables the cache.
+ * <p>
+ * The cache is split into one least recently used map per shard of the {@link IngestQueue}. A label
+ * set is always routed to the same shard and a partition is only used by the thread writing its
+ * shard, so lookups take no locks. Tags that went stale because a label of their metric was
+ * stripped count as a miss and are replaced when they are built again.
+ */
+public class SeriesTagCache
+{
+    private static final String TAG_CACHE_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.tagCacheSize";
+
+    private final Partition[] partitions;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder size = new LongAdder();
+
+    @Inject
+    public SeriesTagCache(@Named(TAG_CACHE_SIZE_PROP) int size, IngestQueue ingestQueue)
+    {
+        checkArgument(size >= 0, "tagCacheSize must not be negative");
+        int shards = checkNotNull(ingestQueue, "ingestQueue must not be null").getShardCount();
+        int partitionSize = (size + shards - 1) / shards;
+        partitions = new Partition[shards];
+        for (int i = 0; i < shards; i++) {
+            partitions[i] = new Partition(partitionSize);
+        }
+    }
+
+    /**
+     * Returns the cached tags for the labels or null if they haven't been cached. Only called by the
+     * thread writing the shard.
+     */
+    SeriesTags get(int shard, List<Label> labels)
+    {
+        SeriesTags seriesTags = partitions[shard].get(labels);
+        if (seriesTags == null || seriesTags.isStale()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return seriesTags;
+    }
+
+    /**
+     * Caches the tags of the labels. Only called by the thread writing the shard.
+     */
+    void put(int shard, List<Label> labels, SeriesTags seriesTags)
+    {
+        Partition partition = partitions[shard];
+        if (partition.maxSize > 0 && partition.put(labels, seriesTags) == null) {
+            size.increment();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    public long size()
+    {
+        return size.sum();
+    }
+
+    private class Partition extends LinkedHashMap<List<Label>, SeriesTags>
+    {
+        private final int maxSize;
+
+        private Partition(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Label>, SeriesTags> eldest)
+        {
+            if (size() <= maxSize) {
+                return false;
+            }
+            evictions.increment();
+            size.decrement();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * The KairosDB metric name and tags built from the labels of a time series, along with the
+ * filtering decisions made while building them. Labels that can't be turned into a metric get
+ * invalid tags, which are cached like valid ones so the labels aren't checked again. Series rejected
+ * by the cardinality limiter are cached as limited so the limiter is only asked once. Tags built
+ * before a label of their metric was stripped are stale and built again.
+ */
+class SeriesTags
+{
+    final String metricName;
+    final ImmutableSortedMap<String, String> tags;
+    final boolean keep;
+    final int labelsDropped;
+    final long fingerprint;
+    final String haCluster;
+    final String haReplica;
+    final String invalidReason;
+    final boolean limited;
+    // Set when histograms are collapsed and the series looks like a _bucket, _sum or _count series
+    final HistogramCollector.Part histogramPart;
+    // Integral sample values are written as longs
+    final boolean longValues;
+    // Labels of the metric tracked by the label cardinality tracker and their version when the tags were built
+    final LabelCardinalityTracker.MetricLabels trackedLabels;
+    final int labelVersion;
+
+    SeriesTags(String metricName, ImmutableSortedMap<String, String> tags, boolean keep, int labelsDropped,
+            String haCluster, String haReplica, HistogramCollector.Part histogramPart, boolean longValues,
+            LabelCardinalityTracker.MetricLabels trackedLabels, int labelVersion)
+    {
+        this.metricName = metricName;
+        this.tags = tags;
+        this.keep = keep;
+        this.labelsDropped = labelsDropped;
+        this.fingerprint = SeriesFingerprint.of(metricName, tags);
+        this.haCluster = haCluster;
+        this.haReplica = haReplica;
+        this.invalidReason = null;
+        this.limited = false;
+        this.histogramPart = histogramPart;
+        this.longValues = longValues;
+        this.trackedLabels = trackedLabels;
+        this.labelVersion = labelVersion;
+    }
+
+    private SeriesTags(SeriesTags seriesTags)
+    {
+        this.metricName = seriesTags.metricName;
+        this.tags = seriesTags.tags;
+        this.keep = false;
+        this.labelsDropped = seriesTags.labelsDropped;
+        this.fingerprint = seriesTags.fingerprint;
+        this.haCluster = seriesTags.haCluster;
+        this.haReplica = seriesTags.haReplica;
+        this.invalidReason = null;
+        this.limited = true;
+        this.histogramPart = null;
+        this.longValues = seriesTags.longValues;
+        this.trackedLabels = seriesTags.trackedLabels;
+        this.labelVersion = seriesTags.labelVersion;
+    }
+
+    // Tags that aren't kept and have no metric name, invalid if there is a reason
+    private SeriesTags(String invalidReason)
+    {
+        this.metricName = null;
+        this.tags = ImmutableSortedMap.of();
+        this.keep = false;
+        this.labelsDropped = 0;
+        this.fingerprint = 0;
+        this.haCluster = null;
+        this.haReplica = null;
+        this.invalidReason = invalidReason;
+        this.limited = false;
+        this.histogramPart = null;
+        this.longValues = false;
+        this.trackedLabels = null;
+        this.labelVersion = 0;
+    }
+
+    static SeriesTags invalid(String reason)
+    {
+        return new SeriesTags(reason);
+    }
+
+    /**
+     * Returns tags of a series that is dropped before its metric name is known, by a relabel rule.
+     */
+    static SeriesTags dropped()
+    {
+        return new SeriesTags((String) null);
+    }
+
+    /**
+     * Returns a copy of the tags that isn't kept because the series is over the cardinality limit.
+     */
+    SeriesTags limited()
+    {
+        return new SeriesTags(this);
+    }
+
+    boolean isValid()
+    {
+        return invalidReason == null;
+    }
+
+    /**
+     * Returns true if a label of the metric was stripped since the tags were built.
+     */
+    boolean isStale()
+    {
+        return trackedLabels != null && trackedLabels.getVersion() != labelVersion;
+    }
+}
@@ -0,0 +1,295 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.protobuf.CodedInputStream;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyCodec;
+import org.xerial.snappy.SnappyError;
+import org.xerial.snappy.SnappyInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decodes snappy compressed request bodies into pooled buffers.
+ * <p>
+ * Prometheus sends the raw snappy block format, so the body is read into a buffer and decompressed
+ * in one shot using the uncompressed length from the block header. Buffers are returned to a pool
+ * when closed so sustained ingest doesn't allocate new arrays for every request. Bodies written
+ * with the snappy-java stream format are still accepted.
+ * <p>
+ * The uncompressed length in the block header comes from the client, so bodies that claim to
+ * decode to more than the maximum decoded size are rejected before anything is allocated for them.
+ */
+public class SnappyBlockDecoder
+{
+    private static final String POOL_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.snappy.bufferPoolSize";
+    private static final String MAX_POOLED_BUFFER_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.snappy.maxPooledBufferSize";
+    private static final String MAX_DECODED_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.snappy.maxDecodedSize";
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] STREAM_FORMAT_MAGIC = SnappyCodec.getMagicHeader();
+
+    private final BlockingQueue<Buffer> pool;
+    private final int maxPooledBufferSize;
+    private final int maxDecodedSize;
+    private final int maxCompressedSize;
+
+    @Inject
+    public SnappyBlockDecoder(@Named(POOL_SIZE_PROP) int poolSize, @Named(MAX_POOLED_BUFFER_SIZE_PROP) int maxPooledBufferSize,
+            @Named(MAX_DECODED_SIZE_PROP) int maxDecodedSize)
+    {
+        checkArgument(poolSize > 0, "bufferPoolSize must be greater than 0");
+        checkArgument(maxDecodedSize > 0, "maxDecodedSize must be greater than 0");
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+        this.maxPooledBufferSize = maxPooledBufferSize;
+        this.maxDecodedSize = maxDecodedSize;
+        // Snappy's bound on the compressed size of the largest body, with room for the stream format header
+        this.maxCompressedSize = (int) Math.min(32L + maxDecodedSize + maxDecodedSize / 6 + STREAM_FORMAT_MAGIC.length, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Reads and decompresses the whole stream. The returned buffer must be closed to return it to the pool.
+     */
+    public Buffer decode(InputStream entityStream)
+            throws IOException
+    {
+        Buffer buffer = read(entityStream);
+        try {
+            buffer.uncompress();
+            return buffer;
+        }
+        catch (IOException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the whole stream without decompressing it. The returned buffer must be closed to return
+     * it to the pool.
+     */
+    public Buffer read(InputStream entityStream)
+            throws IOException
+    {
+        Buffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = new Buffer();
+        }
+        buffer.released = false;
+        buffer.decoded = false;
+        buffer.uncompressedLength = 0;
+
+        try {
+            buffer.readCompressed(entityStream);
+            return buffer;
+        }
+        catch (IOException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+    }
+
+    private void release(Buffer buffer)
+    {
+        if (buffer.compressed.length <= maxPooledBufferSize && buffer.uncompressed.length <= maxPooledBufferSize) {
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * Thrown for a body that can't be decoded. Unlike a failure to read the body, sending it again fails the same way.
+     */
+    public static class InvalidBodyException extends IOException
+    {
+        InvalidBodyException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Thrown for a body that is larger than the maximum decoded size allows.
+     */
+    public static class BodyTooLargeException extends InvalidBodyException
+    {
+        BodyTooLargeException(String message)
+        {
+            super(message, null);
+        }
+    }
+
+    public class Buffer implements Closeable
+    {
+        private byte[] compressed = new byte[INITIAL_BUFFER_SIZE];
+        private int compressedLength;
+        private byte[] uncompressed = new byte[INITIAL_BUFFER_SIZE];
+        private int uncompressedLength;
+        private boolean decoded;
+        private boolean released;
+
+        private Buffer()
+        {
+        }
+
+        public int getCompressedLength()
+        {
+            return compressedLength;
+        }
+
+        public int getUncompressedLength()
+        {
+            return uncompressedLength;
+        }
+
+        /**
+         * Returns the array holding the uncompressed bytes, starting at index 0. The array is only
+         * valid until the buffer is closed.
+         */
+        public byte[] getUncompressedBytes()
+        {
+            return uncompressed;
+        }
+
+        /**
+         * Returns the hash of the compressed bytes.
+         */
+        public HashCode hashCompressed(HashFunction hashFunction)
+        {
+            return hashFunction.hashBytes(compressed, 0, compressedLength);
+        }
+
+        /**
+         * Returns true if the body was decompressed.
+         */
+        public boolean isUncompressed()
+        {
+            return decoded;
+        }
+
+        /**
+         * Writes the uncompressed bytes if the body was decompressed and the compressed bytes otherwise.
+         */
+        public void writeTo(OutputStream out)
+                throws IOException
+        {
+            if (decoded) {
+                out.write(uncompressed, 0, uncompressedLength);
+            }
+            else {
+                out.write(compressed, 0, compressedLength);
+            }
+        }
+
+        /**
+         * Returns an input over the uncompressed bytes. The input is only valid until the buffer is closed.
+         */
+        public CodedInputStream newCodedInputStream()
+        {
+            return CodedInputStream.newInstance(uncompressed, 0, uncompressedLength);
+        }
+
+        private void readCompressed(InputStream entityStream)
+                throws IOException
+        {
+            compressedLength = 0;
+            int read;
+            while ((read = entityStream.read(compressed, compressedLength, compressed.length - compressedLength)) != -1) {
+                compressedLength += read;
+                if (compressedLength > maxCompressedSize) {
+                    throw new BodyTooLargeException("Request body is larger than " + maxCompressedSize + " bytes");
+                }
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, (int) Math.min(compressed.length * 2L, maxCompressedSize + 1L));
+                }
+            }
+        }
+
+        /**
+         * Decompresses the bytes read by {@link SnappyBlockDecoder#read(InputStream)}. The buffer still
+         * has to be closed if decompression fails.
+         *
+         * @throws InvalidBodyException if the bytes aren't snappy compressed or decode to more than the maximum size
+         */
+        public void uncompress()
+                throws InvalidBodyException
+        {
+            try {
+                if (isStreamFormat()) {
+                    uncompressStreamFormat();
+                    decoded = true;
+                    return;
+                }
+
+                int length = Snappy.uncompressedLength(compressed, 0, compressedLength);
+                if (length < 0 || length > maxDecodedSize) {
+                    throw new BodyTooLargeException("Request body decodes to more than " + maxDecodedSize + " bytes");
+                }
+                if (uncompressed.length < length) {
+                    uncompressed = new byte[(int) Math.min(Math.max(length, uncompressed.length * 2L), maxDecodedSize)];
+                }
+                uncompressedLength = Snappy.uncompress(compressed, 0, compressedLength, uncompressed, 0);
+                decoded = true;
+            }
+            catch (InvalidBodyException e) {
+                throw e;
+            }
+            catch (IOException | SnappyError e) {
+                // The bytes are already in memory, so any failure is in the data
+                throw new InvalidBodyException("Request body is not valid snappy data: " + e.getMessage(), e);
+            }
+        }
+
+        private boolean isStreamFormat()
+        {
+            if (compressedLength < STREAM_FORMAT_MAGIC.length) {
+                return false;
+            }
+            for (int i = 0; i < STREAM_FORMAT_MAGIC.length; i++) {
+                if (compressed[i] != STREAM_FORMAT_MAGIC[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void uncompressStreamFormat()
+                throws IOException
+        {
+            try (SnappyInputStream stream = new SnappyInputStream(new ByteArrayInputStream(compressed, 0, compressedLength))) {
+                uncompressedLength = 0;
+                int read;
+                while ((read = stream.read(uncompressed, uncompressedLength, uncompressed.length - uncompressedLength)) != -1) {
+                    uncompressedLength += read;
+                    if (uncompressedLength > maxDecodedSize) {
+                        throw new BodyTooLargeException("Request body decodes to more than " + maxDecodedSize + " bytes");
+                    }
+                    if (uncompressedLength == uncompressed.length) {
+                        // One byte over the limit is enough to tell that the body is too large
+                        uncompressed = Arrays.copyOf(uncompressed, (int) Math.min(uncompressed.length * 2L, maxDecodedSize + 1L));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            if (!released) {
+                released = true;
+                release(this);
+            }
+        }
+    }
+}
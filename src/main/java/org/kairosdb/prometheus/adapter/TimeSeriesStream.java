@@ -0,0 +1,208 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashCode;
+import prometheus.Remote.WriteRequest;
+import prometheus.Types.Label;
+import prometheus.Types.TimeSeries;
+import prometheus.Types.TimeSeriesOrBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The time series of a remote write request. Series are handed to the consumer one at a time so
+ * an implementation can decode them lazily instead of holding the whole request in memory.
+ * toString() returns a short summary whose size doesn't depend on the size of the request.
+ */
+public interface TimeSeriesStream extends Closeable
+{
+    int SUMMARY_METRIC_NAMES = 5;
+
+    /**
+     * Passes each time series to the consumer in request order. A stream can only be consumed once.
+     */
+    void forEach(Consumer<TimeSeries> consumer) throws IOException;
+
+    /**
+     * Returns all time series of the request if they have already been decoded, otherwise null.
+     */
+    default List<TimeSeries> getTimeSeriesList()
+    {
+        return null;
+    }
+
+    /**
+     * Returns the digest of the request body or null if it wasn't computed.
+     */
+    default HashCode getDigest()
+    {
+        return null;
+    }
+
+    /**
+     * Returns true if an identical request body was written recently. The stream is empty then.
+     */
+    default boolean isRetry()
+    {
+        return false;
+    }
+
+    /**
+     * Writes the uncompressed WriteRequest if the stream still holds it and returns false otherwise.
+     */
+    default boolean writeTo(OutputStream out)
+            throws IOException
+    {
+        return false;
+    }
+
+    /**
+     * Releases what the stream holds. A stream that failed part way keeps its body until it is closed.
+     */
+    @Override
+    default void close()
+    {
+    }
+
+    /**
+     * Returns the value of the __name__ label or null.
+     */
+    static String metricNameOf(TimeSeriesOrBuilder timeSeries)
+    {
+        for (Label label : timeSeries.getLabelsList()) {
+            if (label.getName().equals("__name__")) {
+                return label.getValue();
+            }
+        }
+        return null;
+    }
+
+    static TimeSeriesStream of(WriteRequest request)
+    {
+        return new WriteRequestStream(request);
+    }
+
+    static TimeSeriesStream withDigest(TimeSeriesStream stream, HashCode digest)
+    {
+        return digest != null ? new DigestStream(stream, digest) : stream;
+    }
+
+    static TimeSeriesStream retry(HashCode digest)
+    {
+        return new DigestStream(null, digest);
+    }
+
+    /**
+     * Stream over a WriteRequest that has already been fully decoded.
+     */
+    class WriteRequestStream implements TimeSeriesStream
+    {
+        private final WriteRequest request;
+
+        WriteRequestStream(WriteRequest request)
+        {
+            this.request = request;
+        }
+
+        @Override
+        public void forEach(Consumer<TimeSeries> consumer)
+        {
+            for (TimeSeries timeSeries : request.getTimeseriesList()) {
+                consumer.accept(timeSeries);
+            }
+        }
+
+        @Override
+        public List<TimeSeries> getTimeSeriesList()
+        {
+            return request.getTimeseriesList();
+        }
+
+        @Override
+        public boolean writeTo(OutputStream out)
+                throws IOException
+        {
+            request.writeTo(out);
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder summary = new StringBuilder("WriteRequest{series=").append(request.getTimeseriesCount())
+                    .append(", bytes=").append(request.getSerializedSize())
+                    .append(", metrics=[");
+            int names = Math.min(request.getTimeseriesCount(), SUMMARY_METRIC_NAMES);
+            for (int i = 0; i < names; i++) {
+                summary.append(i > 0 ? ", " : "").append(metricNameOf(request.getTimeseries(i)));
+            }
+            return summary.append(names < request.getTimeseriesCount() ? ", ...]}" : "]}").toString();
+        }
+    }
+
+    /**
+     * Stream that carries the digest of its request body. Without a delegate it stands for a retried body.
+     */
+    class DigestStream implements TimeSeriesStream
+    {
+        private final TimeSeriesStream delegate;
+        private final HashCode digest;
+
+        DigestStream(TimeSeriesStream delegate, HashCode digest)
+        {
+            this.delegate = delegate;
+            this.digest = digest;
+        }
+
+        @Override
+        public void forEach(Consumer<TimeSeries> consumer)
+                throws IOException
+        {
+            if (delegate != null) {
+                delegate.forEach(consumer);
+            }
+        }
+
+        @Override
+        public List<TimeSeries> getTimeSeriesList()
+        {
+            return delegate != null ? delegate.getTimeSeriesList() : null;
+        }
+
+        @Override
+        public HashCode getDigest()
+        {
+            return digest;
+        }
+
+        @Override
+        public boolean isRetry()
+        {
+            return delegate == null;
+        }
+
+        @Override
+        public boolean writeTo(OutputStream out)
+                throws IOException
+        {
+            return delegate != null && delegate.writeTo(out);
+        }
+
+        @Override
+        public void close()
+        {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return delegate != null ? delegate.toString() : "Retry of " + digest;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashCode;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.protobuf.InvalidProtocolBufferException;
+import prometheus.Remote.WriteRequest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Jersey provider that turns a snappy compressed WriteRequest entity into a TimeSeriesStream.
+ * In streaming mode the series are decoded lazily as the stream is consumed, otherwise the whole
+ * WriteRequest is parsed up front. A body that was written recently isn't decompressed at all.
+ * <p>
+ * A body that can't be decompressed or parsed is answered with 400 and reported to the error
+ * diagnostics, since sending it again fails the same way. Other failures to read the body, such as a
+ * connection reset by the client, are answered with 500 so Prometheus retries them.
+ */
+@Provider
+@Consumes(ProtocolBufferMediaType.APPLICATION_PROTOBUF)
+public class TimeSeriesStreamProvider implements MessageBodyReader<TimeSeriesStream>
+{
+    private static final String STREAMING_PROP = "kairosdb.plugin.prometheus-adapter.writer.streaming";
+    private static final String METRIC_INTERN_HITS = "kairosdb.prometheus.write-adapter.intern.hit.count";
+    private static final String METRIC_INTERN_MISSES = "kairosdb.prometheus.write-adapter.intern.miss.count";
+    private static final String METRIC_INTERN_EVICTIONS = "kairosdb.prometheus.write-adapter.intern.eviction.count";
+
+    private final SnappyBlockDecoder decoder;
+    private final LabelInterner interner;
+    private final RetryCache retryCache;
+    private final RequestHistograms histograms;
+    private final ErrorDiagnostics errorDiagnostics;
+    private final boolean streaming;
+
+    @Inject
+    public TimeSeriesStreamProvider(SnappyBlockDecoder decoder, LabelInterner interner, RetryCache retryCache,
+            RequestHistograms histograms, ErrorDiagnostics errorDiagnostics, AdapterMetrics adapterMetrics,
+            @Named(STREAMING_PROP) boolean streaming)
+    {
+        this.decoder = checkNotNull(decoder, "decoder must not be null");
+        this.interner = checkNotNull(interner, "interner must not be null");
+        this.retryCache = checkNotNull(retryCache, "retryCache must not be null");
+        this.histograms = checkNotNull(histograms, "histograms must not be null");
+        this.errorDiagnostics = checkNotNull(errorDiagnostics, "errorDiagnostics must not be null");
+        this.streaming = streaming;
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        if (streaming && interner.isEnabled()) {
+            adapterMetrics.addCounter(METRIC_INTERN_HITS, null, null, interner::getHitCount);
+            adapterMetrics.addCounter(METRIC_INTERN_MISSES, null, null, interner::getMissCount);
+            adapterMetrics.addCounter(METRIC_INTERN_EVICTIONS, null, null, interner::getEvictionCount);
+        }
+    }
+
+    @Override
+    public boolean isReadable(
+            final Class<?> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType)
+    {
+        return TimeSeriesStream.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public TimeSeriesStream readFrom(
+            final Class<TimeSeriesStream> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType,
+            final MultivaluedMap<String, String> httpHeaders,
+            final InputStream entityStream)
+    {
+        FlightRecorderEvents.Decode event = FlightRecorderEvents.beginDecode();
+        SnappyBlockDecoder.Buffer buffer = null;
+        try {
+            long start = System.nanoTime();
+            buffer = decoder.read(entityStream);
+            long readEnd = RequestHistograms.recordSince(histograms.read, start);
+            histograms.compressedBytes.record(buffer.getCompressedLength());
+            if (event != null) {
+                event.messageType = WriteRequest.class.getSimpleName();
+                event.compressedBytes = buffer.getCompressedLength();
+                event.readDuration = readEnd - start;
+            }
+
+            HashCode digest = retryCache.digest(buffer);
+            if (retryCache.isRetry(digest)) {
+                buffer.close();
+                if (event != null) {
+                    event.retry = true;
+                }
+                return TimeSeriesStream.retry(digest);
+            }
+
+            buffer.uncompress();
+            long decompressEnd = RequestHistograms.recordSince(histograms.decompress, readEnd);
+            histograms.uncompressedBytes.record(buffer.getUncompressedLength());
+            if (event != null) {
+                event.uncompressedBytes = buffer.getUncompressedLength();
+                event.decompressDuration = decompressEnd - readEnd;
+            }
+            if (streaming) {
+                return TimeSeriesStream.withDigest(new CodedTimeSeriesStream(buffer.getUncompressedBytes(), 0,
+                        buffer.getUncompressedLength(), interner, buffer), digest);
+            }
+
+            WriteRequest request = WriteRequest.parseFrom(buffer.newCodedInputStream());
+            buffer.close();
+            long parseEnd = RequestHistograms.recordSince(histograms.parse, decompressEnd);
+            if (event != null) {
+                event.parseDuration = parseEnd - decompressEnd;
+            }
+            return TimeSeriesStream.withDigest(TimeSeriesStream.of(request), digest);
+        }
+        catch (SnappyBlockDecoder.InvalidBodyException | InvalidProtocolBufferException e) {
+            // A body that can't be decompressed or parsed fails the same way when it is sent again
+            errorDiagnostics.bodyFailed("Invalid request body", buffer, e);
+            if (buffer != null) {
+                buffer.close();
+            }
+            throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+        }
+        catch (Exception e) {
+            if (buffer != null) {
+                buffer.close();
+            }
+            throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+        }
+        finally {
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+}
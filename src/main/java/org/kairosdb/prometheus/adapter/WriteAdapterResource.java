@@ -4,12 +4,13 @@ import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedMap.Builder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import com.google.protobuf.InvalidProtocolBufferException;
 import org.h2.util.StringUtils;
+import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.datapoints.DoubleDataPoint;
 import org.kairosdb.core.datapoints.LongDataPoint;
-import org.kairosdb.eventbus.FilterEventBus;
-import org.kairosdb.eventbus.Publisher;
 import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.prometheus.adapter.BatchPublisher.DataPointBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import prometheus.Remote.WriteRequest;
@@ -22,14 +23,18 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Response;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 @Path("api/v1/prometheus/writeadapter")
 public class WriteAdapterResource
@@ -38,29 +43,114 @@ public class WriteAdapterResource
     private static final String METRIC_METRICS_SENT = "kairosdb.prometheus.write-adapter.metrics-sent.count";
     private static final String METRIC_EXCEPTIONS = "kairosdb.prometheus.write-adapter.exception.count";
     private static final String METRIC_LABELS_DROPPED = "kairosdb.prometheus.write-adapter.labels-dropped.count";
+    private static final String METRIC_DROP_CACHE_HITS = "kairosdb.prometheus.write-adapter.drop-cache.hit.count";
+    private static final String METRIC_DROP_CACHE_MISSES = "kairosdb.prometheus.write-adapter.drop-cache.miss.count";
+    private static final String METRIC_TAG_CACHE_HITS = "kairosdb.prometheus.write-adapter.tag-cache.hit.count";
+    private static final String METRIC_TAG_CACHE_MISSES = "kairosdb.prometheus.write-adapter.tag-cache.miss.count";
+    private static final String METRIC_TAG_CACHE_EVICTIONS = "kairosdb.prometheus.write-adapter.tag-cache.eviction.count";
+    private static final String METRIC_TAG_CACHE_SIZE = "kairosdb.prometheus.write-adapter.tag-cache.size";
+    private static final String METRIC_HISTOGRAMS_COLLAPSED = "kairosdb.prometheus.write-adapter.histogram.collapsed.count";
+    private static final String METRIC_DATA_POINTS = "kairosdb.prometheus.write-adapter.data-points.count";
 
     private static final String METRIC_PREFIX_PROP = "kairosdb.plugin.prometheus-adapter.prefix";
     private static final String DROP_METRICS_PROP = "kairosdb.plugin.prometheus-adapter.writer.dropMetrics";
     private static final String DROP_LABELS_PROP = "kairosdb.plugin.prometheus-adapter.writer.dropLabels";
+    private static final String DROP_CACHE_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.writer.dropCacheSize";
+    private static final String COLLAPSE_HISTOGRAMS_PROP = "kairosdb.plugin.prometheus-adapter.writer.collapseHistograms";
+    private static final String LONG_VALUES_PROP = "kairosdb.plugin.prometheus-adapter.writer.longValues";
+    private static final String LONG_VALUE_SUFFIXES_PROP = "kairosdb.plugin.prometheus-adapter.writer.longValueSuffixes";
+
+    // Doubles from -2^63 up to but excluding 2^63 fit in a long
+    private static final double LONG_RANGE = 0x1p63;
+
+    /**
+     * Which series have their integral sample values written as LongDataPoints.
+     */
+    enum LongValues
+    {
+        NEVER, INTEGRAL, SUFFIX
+    }
 
-    private final Publisher<DataPointEvent> dataPointPublisher;
-    private final String host;
     private final String metricPrefix;
-    private final Set<Pattern> dropMetricsRegex = new HashSet<>();
-    private final Set<Pattern> dropLablelsRegex = new HashSet<>();
+    private final DropFilter dropMetricsFilter;
+    private final DropFilter dropLabelsFilter;
+    private final boolean collapseHistograms;
+    private final LongValues longValues;
+    private final String[] longValueSuffixes;
+    private final SeriesTagCache tagCache;
+    private final BatchPublisher batchPublisher;
+    private final IngestQueue ingestQueue;
+    private final RequestSplitter requestSplitter;
+    private final HaDeduplicator haDeduplicator;
+    private final HighWaterMarks highWaterMarks;
+    private final RetryCache retryCache;
+    private final CardinalityLimiter cardinalityLimiter;
+    private final LabelCardinalityTracker labelTracker;
+    private final RelabelEngine relabelEngine;
+    private final RequestHistograms histograms;
+    private final ErrorDiagnostics errorDiagnostics;
+    private final AdapterMetrics adapterMetrics;
+    private final LongAdder metricsSent = new LongAdder();
+    private final LongAdder metricsFailed = new LongAdder();
+    private final LongAdder metricsDropped = new LongAdder();
+    private final LongAdder metricsOutOfOrder = new LongAdder();
+    private final LongAdder metricsInvalid = new LongAdder();
+    private final LongAdder metricsLimited = new LongAdder();
+    private final LongAdder labelsDropped = new LongAdder();
+    private final LongAdder histogramsCollapsed = new LongAdder();
+    private final LongAdder dataPointsLong = new LongAdder();
+    private final LongAdder dataPointsDouble = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> exceptions = new ConcurrentHashMap<>();
 
     @Inject
-    public WriteAdapterResource(FilterEventBus eventBus, @Named(METRIC_PREFIX_PROP) String metricPrefix,
-            @Named(DROP_METRICS_PROP) String dropMetrics, @Named(DROP_LABELS_PROP) String dropLabels)
-            throws UnknownHostException
+    public WriteAdapterResource(@Named(METRIC_PREFIX_PROP) String metricPrefix,
+            @Named(DROP_METRICS_PROP) String dropMetrics, @Named(DROP_LABELS_PROP) String dropLabels,
+            @Named(DROP_CACHE_SIZE_PROP) int dropCacheSize, @Named(COLLAPSE_HISTOGRAMS_PROP) boolean collapseHistograms,
+            @Named(LONG_VALUES_PROP) String longValues, @Named(LONG_VALUE_SUFFIXES_PROP) String longValueSuffixes,
+            SeriesTagCache tagCache, BatchPublisher batchPublisher,
+            IngestQueue ingestQueue, RequestSplitter requestSplitter, HaDeduplicator haDeduplicator,
+            HighWaterMarks highWaterMarks, RetryCache retryCache, CardinalityLimiter cardinalityLimiter,
+            LabelCardinalityTracker labelTracker, RelabelEngine relabelEngine, RequestHistograms histograms,
+            ErrorDiagnostics errorDiagnostics, AdapterMetrics adapterMetrics)
     {
-        checkNotNull(eventBus, "eventBus must not be null");
-        this.dataPointPublisher = eventBus.createPublisher(DataPointEvent.class);
-        host = InetAddress.getLocalHost().getHostName();
-
         this.metricPrefix = metricPrefix;
-        createRegexPatterns(dropMetrics, dropMetricsRegex);
-        createRegexPatterns(dropLabels, dropLablelsRegex);
+        this.collapseHistograms = collapseHistograms;
+        this.longValues = LongValues.valueOf(longValues.trim().toUpperCase(Locale.ROOT));
+        this.longValueSuffixes = StringUtils.isNullOrEmpty(longValueSuffixes) ? new String[0] : longValueSuffixes.trim().split("\\s*,\\s*");
+        this.tagCache = checkNotNull(tagCache, "tagCache must not be null");
+        this.batchPublisher = checkNotNull(batchPublisher, "batchPublisher must not be null");
+        this.ingestQueue = checkNotNull(ingestQueue, "ingestQueue must not be null");
+        this.requestSplitter = checkNotNull(requestSplitter, "requestSplitter must not be null");
+        this.haDeduplicator = checkNotNull(haDeduplicator, "haDeduplicator must not be null");
+        this.highWaterMarks = checkNotNull(highWaterMarks, "highWaterMarks must not be null");
+        this.retryCache = checkNotNull(retryCache, "retryCache must not be null");
+        this.cardinalityLimiter = checkNotNull(cardinalityLimiter, "cardinalityLimiter must not be null");
+        this.labelTracker = checkNotNull(labelTracker, "labelTracker must not be null");
+        this.relabelEngine = checkNotNull(relabelEngine, "relabelEngine must not be null");
+        this.histograms = checkNotNull(histograms, "histograms must not be null");
+        this.errorDiagnostics = checkNotNull(errorDiagnostics, "errorDiagnostics must not be null");
+        dropMetricsFilter = new DropFilter(dropMetrics, dropCacheSize);
+        dropLabelsFilter = new DropFilter(dropLabels, dropCacheSize);
+
+        this.adapterMetrics = checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_METRICS_SENT, "status", "sent", metricsSent::sum);
+        adapterMetrics.addCounter(METRIC_METRICS_SENT, "status", "failed", metricsFailed::sum);
+        adapterMetrics.addCounter(METRIC_METRICS_SENT, "status", "dropped", metricsDropped::sum);
+        adapterMetrics.addCounter(METRIC_METRICS_SENT, "status", "out-of-order", metricsOutOfOrder::sum);
+        adapterMetrics.addCounter(METRIC_METRICS_SENT, "status", "invalid", metricsInvalid::sum);
+        adapterMetrics.addCounter(METRIC_METRICS_SENT, "status", "limited", metricsLimited::sum);
+        adapterMetrics.addCounter(METRIC_LABELS_DROPPED, null, null, labelsDropped::sum);
+        adapterMetrics.addCounter(METRIC_HISTOGRAMS_COLLAPSED, null, null, histogramsCollapsed::sum);
+        adapterMetrics.addCounter(METRIC_DATA_POINTS, "type", "long", dataPointsLong::sum);
+        adapterMetrics.addCounter(METRIC_DATA_POINTS, "type", "double", dataPointsDouble::sum);
+        adapterMetrics.addCounter(METRIC_DROP_CACHE_HITS, "cache", "metrics", dropMetricsFilter::getHitCount);
+        adapterMetrics.addCounter(METRIC_DROP_CACHE_MISSES, "cache", "metrics", dropMetricsFilter::getMissCount);
+        adapterMetrics.addCounter(METRIC_DROP_CACHE_HITS, "cache", "labels", dropLabelsFilter::getHitCount);
+        adapterMetrics.addCounter(METRIC_DROP_CACHE_MISSES, "cache", "labels", dropLabelsFilter::getMissCount);
+        adapterMetrics.addCounter(METRIC_TAG_CACHE_HITS, null, null, tagCache::getHitCount);
+        adapterMetrics.addCounter(METRIC_TAG_CACHE_MISSES, null, null, tagCache::getMissCount);
+        adapterMetrics.addCounter(METRIC_TAG_CACHE_EVICTIONS, null, null, tagCache::getEvictionCount);
+        adapterMetrics.addGauge(METRIC_TAG_CACHE_SIZE, null, null, tagCache::size);
 
         if (!StringUtils.isNullOrEmpty(dropMetrics)) {
             logger.info("Dropping metrics that match these regex expressions: " + dropMetrics);
@@ -70,144 +160,589 @@ public class WriteAdapterResource
         }
     }
 
-    @SuppressWarnings("ConstantConditions")
     @POST
     @Consumes("application/x-protobuf")
     @Produces("text/plain")
     @Path("/write")
+    public Response write(TimeSeriesStream stream)
+    {
+        FlightRecorderEvents.Write event = FlightRecorderEvents.beginWrite();
+        try {
+            Response response = write(stream, event);
+            if (event != null) {
+                event.status = response.getStatus();
+                event.commit();
+            }
+            return response;
+        }
+        finally {
+            stream.close();
+        }
+    }
+
     public Response write(WriteRequest request)
     {
-        if (logger.isTraceEnabled())
-        {
-            logger.trace("Request: %s", request);
+        return write(TimeSeriesStream.of(request));
+    }
+
+    private Response write(TimeSeriesStream stream, FlightRecorderEvents.Write event)
+    {
+        if (stream.isRetry()) {
+            return Response.status(Response.Status.OK).build();
+        }
+        if (!ingestQueue.admit()) {
+            return tooManyRequests();
         }
 
-        int metricsSent = 0;
-        int metricsDropped = 0;
-        int labelsDropped = 0;
+        long start = System.nanoTime();
+        IngestQueue.QueuedWork queuedWork = new IngestQueue.QueuedWork();
         try {
-            for (TimeSeries timeSeries : request.getTimeseriesList()) {
-                String metricName = null;
-                Builder<String, String> tagBuilder = ImmutableSortedMap.naturalOrder();
-                for (Label label : timeSeries.getLabelsList()) {
-                    if (label.getName().equals("__name__")) {
-                        metricName = label.getValue();
-                    }
-                    else {
-                        if (shouldKeep(label.getName(), dropLablelsRegex)) {
-                            tagBuilder.put(label.getName(), label.getValue());
-                        }
-                        else {
-                            labelsDropped++;
-                            if (logger.isDebugEnabled()) {
-                                logger.debug("Label {} was dropped because it matched the drop label regex for metric {}", label.getName(), metricName);
-                            }
-                        }
+            ShardWork[] shardWorks = new ShardWork[ingestQueue.getShardCount()];
+            for (int shard = 0; shard < shardWorks.length; shard++) {
+                shardWorks[shard] = new ShardWork(shard);
+            }
+            List<TimeSeries> timeSeriesList = stream.getTimeSeriesList();
+            if (timeSeriesList != null && requestSplitter.shouldSplit(timeSeriesList.size())) {
+                requestSplitter.write(timeSeriesList, chunk -> {
+                    SeriesRouter router = new SeriesRouter(shardWorks, queuedWork);
+                    chunk.forEach(router::add);
+                    router.flush();
+                });
+            }
+            else {
+                SeriesRouter router = new SeriesRouter(shardWorks, queuedWork);
+                stream.forEach(router::add);
+                router.flush();
+            }
+            if (collapseHistograms) {
+                // Buckets of a histogram can be anywhere in the request, so they are written after all series of the shard
+                for (ShardWork shardWork : shardWorks) {
+                    if (shardWork.routed) {
+                        ingestQueue.submit(shardWork.shard, queuedWork, () -> writeHistograms(shardWork));
                     }
                 }
+            }
 
-                checkState(!StringUtils.isNullOrEmpty(metricName), "No metric name was specified for the given metric. Missing __name__ label.");
-
-                if (shouldKeep(metricName, dropMetricsRegex)) {
-                    for (Sample sample : timeSeries.getSamplesList()) {
-                        if (isValidNumber(sample.getValue())) {
-                            publishMetric(metricPrefix != null ? metricPrefix + metricName : metricName, sample.getTimestamp(), sample.getValue(), tagBuilder.build());
-                            metricsSent++;
-                        }
-                        else
-                        {
-                            metricsDropped++;
-                            if (logger.isDebugEnabled()) {
-                                logger.debug("Metric was dropped because its value is Infinite or NAN {}", metricName);
-                            }
-                        }
-                    }
-                }
-                else {
-                    metricsDropped++;
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Metric was dropped because it matched the drop metric regex {}", metricName);
-                    }
-                }
+            // A 200 tells Prometheus the data is written, so the request waits until the shards published it
+            queuedWork.awaitSuccess();
+            WriteStats stats = new WriteStats();
+            for (ShardWork shardWork : shardWorks) {
+                stats.add(shardWork.stats);
             }
 
-            publishMetrics(request.getTimeseriesList().size(), metricsSent, metricsDropped, labelsDropped);
+            histograms.series.record(stats.seriesReceived);
+            histograms.samples.record(stats.samplesReceived);
+            if (event != null) {
+                event.series = stats.seriesReceived;
+                event.samples = stats.samplesReceived;
+                event.samplesSent = stats.metricsSent;
+                event.samplesDropped = stats.metricsDropped;
+                event.labelsDropped = stats.labelsDropped;
+                event.invalidSeries = stats.seriesInvalid;
+                event.limitedSeries = stats.seriesLimited;
+                event.duplicates = stats.duplicates;
+                event.outOfOrder = stats.outOfOrder;
+                event.processDuration = stats.processNanos;
+                event.flushDuration = stats.flushNanos;
+            }
+
+            countMetrics(stats);
 
+            if (stats.isAllInvalid()) {
+                // Prometheus doesn't retry 4xx responses, which would fail the same way again
+                return Response.status(Response.Status.BAD_REQUEST).entity(stats.getSummary()).build();
+            }
+            retryCache.put(stream.getDigest());
+            if (stats.seriesInvalid > 0) {
+                return Response.status(Response.Status.OK).entity(stats.getSummary()).build();
+            }
             return Response.status(Response.Status.OK).build();
         }
+        catch (IngestQueue.QueueFullException e) {
+            if (!queuedWork.isAnyQueued()) {
+                return tooManyRequests();
+            }
+            // The queued work is done anyway, answer once it is so the retry doesn't race it
+            queuedWork.awaitDone();
+            countException(e);
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", ingestQueue.getRetryAfter())
+                    .entity("Ingest queue filled up after part of the request was queued")
+                    .build();
+        }
+        catch (IngestQueue.WorkFailedException e) {
+            // Counted by the type of the failure of the shard rather than the wrapper
+            errorDiagnostics.requestFailed("Error writing request", stream, e.getCause());
+            countException(e.getCause());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+        catch (InvalidProtocolBufferException e) {
+            errorDiagnostics.requestFailed("Invalid request body", stream, e);
+            countException(e);
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
         catch (Throwable e) {
-            logger.error("Error processing request: " + request.toString(), e);
-            publishMetric(METRIC_EXCEPTIONS, 1, "exception", e.getMessage());
+            errorDiagnostics.requestFailed("Error processing request", stream, e);
+            countException(e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
         }
+        finally {
+            RequestHistograms.recordSince(histograms.write, start);
+        }
     }
 
-    private boolean isValidNumber(double value)
+    private Response tooManyRequests()
     {
-        return !Double.isNaN(value) && !Double.isInfinite(value);
+        // Response.Status has no constant for 429 in JAX-RS 2.0
+        return Response.status(429)
+                .header("Retry-After", ingestQueue.getRetryAfter())
+                .entity("Ingest queue is full")
+                .build();
     }
 
-    private void
-    publishMetrics(int metricsReceived, int metricsSent, int metricsDropped, int labelsDropped)
+    /**
+     * Returns the hash that routes a series to its shard. It is taken over the labels as they were
+     * received, without the HA replica label so all replicas of a series reach the same shard, and
+     * without the "le" label and the histogram suffixes when histograms are collapsed so all parts of
+     * a histogram do too. The labels are added up so their order doesn't matter.
+     */
+    private int routingHash(List<Label> labels)
     {
-        publishMetric(METRIC_METRICS_SENT, metricsSent, "status", "sent");
+        int hash = 0;
+        for (Label label : labels) {
+            String name = label.getName();
+            if (haDeduplicator.isReplicaLabel(name) || (collapseHistograms && name.equals("le"))) {
+                continue;
+            }
+            int valueHash = collapseHistograms && name.equals("__name__") ? histogramNameHash(label.getValue()) : label.getValue().hashCode();
+            hash += 31 * name.hashCode() + valueHash;
+        }
+        return hash;
+    }
 
-        if (metricsReceived - metricsSent - metricsDropped > 0) {
-            publishMetric(METRIC_METRICS_SENT, metricsReceived - metricsSent - metricsDropped, "status", "failed");
+    /**
+     * Returns the String hash code of the metric name without a _bucket, _sum or _count suffix.
+     */
+    private static int histogramNameHash(String metricName)
+    {
+        int length = metricName.length();
+        if (metricName.endsWith("_bucket")) {
+            length -= "_bucket".length();
+        }
+        else if (metricName.endsWith("_sum")) {
+            length -= "_sum".length();
+        }
+        else if (metricName.endsWith("_count")) {
+            length -= "_count".length();
         }
 
-        if (metricsDropped > 0) {
-            publishMetric(METRIC_METRICS_SENT, metricsDropped, "status", "dropped");
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + metricName.charAt(i);
         }
+        return hash;
+    }
 
-        if (labelsDropped > 0) {
-            publishMetric(METRIC_LABELS_DROPPED, labelsDropped, null, null);
+    /**
+     * Writes series handed over by the request on the thread of their shard.
+     */
+    private void writeTimeSeries(ShardWork shardWork, List<TimeSeries> timeSeriesList)
+    {
+        long start = System.nanoTime();
+        DataPointBatch batch = batchPublisher.newBatch();
+        for (TimeSeries timeSeries : timeSeriesList) {
+            writeTimeSeries(timeSeries, shardWork, batch);
         }
+        flush(batch, shardWork, start);
     }
 
-    @SuppressWarnings("ConstantConditions")
-    private void publishMetric(String metricName, long value, String tagName, String tagValue)
+    /**
+     * Flushes the batch, records the time spent since the start of processing and in the flush, and
+     * raises the high-water marks of the series that were published.
+     */
+    private void flush(DataPointBatch batch, ShardWork shardWork, long start)
     {
-        if (logger.isDebugEnabled()) {
-            logger.debug("Publishing metric " + metricName + " with value of " + value);
+        WriteStats stats = shardWork.stats;
+        long flushStart = RequestHistograms.recordSince(histograms.process, start);
+        batch.flush();
+        long end = RequestHistograms.recordSince(histograms.flush, flushStart);
+        stats.processNanos += flushStart - start;
+        stats.flushNanos += end - flushStart;
+
+        highWaterMarks.update(shardWork.shard, stats.markFingerprints, stats.markTimestamps, stats.marks, System.currentTimeMillis());
+        stats.marks = 0;
+    }
+
+    private void writeTimeSeries(TimeSeries timeSeries, ShardWork shardWork, DataPointBatch batch)
+    {
+        if (logger.isTraceEnabled())
+        {
+            logger.trace("Time series: {}", timeSeries);
+        }
+
+        WriteStats stats = shardWork.stats;
+        stats.seriesReceived++;
+        stats.samplesReceived += timeSeries.getSamplesCount();
+        List<Label> labels = timeSeries.getLabelsList();
+        SeriesTags seriesTags = tagCache.get(shardWork.shard, labels);
+        if (seriesTags == null) {
+            long start = System.nanoTime();
+            seriesTags = buildSeriesTags(shardWork.shard, labels);
+            RequestHistograms.recordSince(histograms.filter, start);
+            tagCache.put(shardWork.shard, labels, seriesTags);
+        }
+        if (!seriesTags.isValid()) {
+            stats.addInvalid(seriesTags.invalidReason, timeSeries.getSamplesCount());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Time series was skipped because it is invalid: {}", seriesTags.invalidReason);
+            }
+            return;
         }
+        stats.labelsDropped += seriesTags.labelsDropped;
 
-        ImmutableSortedMap<String, String> tags;
-        if (!StringUtils.isNullOrEmpty(tagName)) {
-            tags = ImmutableSortedMap.of("host", this.host, tagName, tagValue);
+        long now = System.currentTimeMillis();
+        if (seriesTags.haReplica != null && !haDeduplicator.accept(shardWork.shard, seriesTags.haCluster, seriesTags.haReplica,
+                now, timeSeries.getSamplesCount())) {
+            stats.duplicates += timeSeries.getSamplesCount();
+            return;
+        }
+
+        if (seriesTags.keep) {
+            if (seriesTags.histogramPart == null || !shardWork.getHistogramCollector().add(seriesTags, timeSeries.getSamplesList())) {
+                writeSamples(shardWork.shard, seriesTags, timeSeries.getSamplesList(), stats, batch, now);
+            }
+        }
+        else if (seriesTags.limited) {
+            stats.seriesLimited++;
+            stats.samplesLimited += timeSeries.getSamplesCount();
         }
         else {
-            tags = ImmutableSortedMap.of("host", this.host);
+            stats.metricsDropped += timeSeries.getSamplesCount();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Metric was dropped by the drop metric regex or a relabel rule {}", seriesTags.metricName);
+            }
         }
+    }
 
-        dataPointPublisher.post(new DataPointEvent(metricName, tags,
-                new LongDataPoint(System.currentTimeMillis(), value)));
+    /**
+     * Adds the samples of a kept series to the batch, skipping those at or below its high-water mark.
+     */
+    private void writeSamples(int shard, SeriesTags seriesTags, List<Sample> samples, WriteStats stats, DataPointBatch batch, long now)
+    {
+        long highWaterMark = highWaterMarks.get(shard, seriesTags.fingerprint, now);
+        long newest = Long.MIN_VALUE;
+        for (Sample sample : samples) {
+            if (sample.getTimestamp() <= highWaterMark) {
+                stats.outOfOrder++;
+            }
+            else if (isValidNumber(sample.getValue())) {
+                DataPoint dataPoint;
+                if (seriesTags.longValues && isLong(sample.getValue())) {
+                    dataPoint = new LongDataPoint(sample.getTimestamp(), (long) sample.getValue());
+                    stats.samplesLong++;
+                }
+                else {
+                    dataPoint = new DoubleDataPoint(sample.getTimestamp(), sample.getValue());
+                    stats.samplesDouble++;
+                }
+                batch.add(new DataPointEvent(seriesTags.metricName, seriesTags.tags, dataPoint));
+                stats.metricsSent++;
+                newest = Math.max(newest, sample.getTimestamp());
+            }
+            else
+            {
+                stats.metricsDropped++;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Metric was dropped because its value is Infinite or NAN {}", seriesTags.metricName);
+                }
+            }
+        }
+        if (newest != Long.MIN_VALUE && highWaterMarks.isEnabled()) {
+            stats.addMark(seriesTags.fingerprint, newest);
+        }
     }
 
-    private void publishMetric(String metricName, long timestamp, double value, ImmutableSortedMap<String, String> tags)
+    /**
+     * Writes one histogram data point per timestamp for each histogram collected by the shard. The samples
+     * of a timestamp without a +Inf bucket are written as plain series.
+     */
+    private void writeHistograms(ShardWork shardWork)
     {
-        dataPointPublisher.post(new DataPointEvent(metricName,
-                tags,
-                new DoubleDataPoint(timestamp, value)));
+        HistogramCollector histogramCollector = shardWork.histogramCollector;
+        if (histogramCollector == null || histogramCollector.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int shard = shardWork.shard;
+        WriteStats stats = shardWork.stats;
+        DataPointBatch batch = batchPublisher.newBatch();
+        long now = System.currentTimeMillis();
+        for (HistogramCollector.Group group : histogramCollector.getGroups()) {
+            long highWaterMark = highWaterMarks.get(shard, group.fingerprint, now);
+            long newest = Long.MIN_VALUE;
+            List<Sample> sums = new ArrayList<>();
+            List<Sample> counts = new ArrayList<>();
+            Map<Double, List<Sample>> buckets = new HashMap<>();
+            for (HistogramCollector.PointBuilder point : group.points.values()) {
+                if (!point.isComplete()) {
+                    // The +Inf bucket was dropped or sent in another request, the samples are written as they are
+                    if (!Double.isNaN(point.sum)) {
+                        sums.add(Sample.newBuilder().setTimestamp(point.timestamp).setValue(point.sum).build());
+                    }
+                    if (!Double.isNaN(point.count)) {
+                        counts.add(Sample.newBuilder().setTimestamp(point.timestamp).setValue(point.count).build());
+                    }
+                    for (Map.Entry<Double, Double> bucket : point.counts.entrySet()) {
+                        buckets.computeIfAbsent(bucket.getKey(), bound -> new ArrayList<>())
+                                .add(Sample.newBuilder().setTimestamp(point.timestamp).setValue(bucket.getValue()).build());
+                    }
+                    continue;
+                }
+
+                PrometheusHistogramDataPoint dataPoint = point.build();
+                if (point.timestamp <= highWaterMark) {
+                    stats.outOfOrder += point.getSamples();
+                }
+                else if (dataPoint != null) {
+                    batch.add(new DataPointEvent(group.metricName, group.tags, dataPoint));
+                    stats.metricsSent += point.getSamples();
+                    histogramsCollapsed.increment();
+                    newest = Math.max(newest, point.timestamp);
+                }
+                else {
+                    stats.metricsDropped += point.getSamples();
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Histogram was dropped because a value is Infinite or NAN {}", group.metricName);
+                    }
+                }
+            }
+            if (newest != Long.MIN_VALUE && highWaterMarks.isEnabled()) {
+                stats.addMark(group.fingerprint, newest);
+            }
+            if (!sums.isEmpty()) {
+                writeSamples(shard, group.sumTags, sums, stats, batch, now);
+            }
+            if (!counts.isEmpty()) {
+                writeSamples(shard, group.countTags, counts, stats, batch, now);
+            }
+            for (Map.Entry<Double, List<Sample>> bucket : buckets.entrySet()) {
+                writeSamples(shard, group.bucketTags.get(bucket.getKey()), bucket.getValue(), stats, batch, now);
+            }
+        }
+        flush(batch, shardWork, start);
     }
 
-    private static void createRegexPatterns(String patterns, Set<Pattern> patternSet)
+    @SuppressWarnings("ConstantConditions")
+    private SeriesTags buildSeriesTags(int shard, List<Label> rawLabels)
     {
-        if (!StringUtils.isNullOrEmpty(patterns)) {
-            String[] split = patterns.split("\\s*,\\s*");
-            for (String pattern : split) {
-                patternSet.add(Pattern.compile(pattern));
+        List<Label> labels = relabelEngine.relabel(rawLabels);
+        if (labels == null) {
+            return SeriesTags.dropped();
+        }
+
+        String metricName = null;
+        String haCluster = null;
+        String haReplica = null;
+        int labelsDropped = 0;
+        Set<String> labelNames = new HashSet<>();
+        Builder<String, String> tagBuilder = ImmutableSortedMap.naturalOrder();
+        for (Label label : labels) {
+            if (label.getName().isEmpty()) {
+                return SeriesTags.invalid("Label with an empty name.");
+            }
+            if (!labelNames.add(label.getName())) {
+                return SeriesTags.invalid("Duplicate label " + label.getName() + ".");
+            }
+
+            if (label.getName().equals("__name__")) {
+                metricName = label.getValue();
+            }
+            else if (haDeduplicator.isReplicaLabel(label.getName())) {
+                haReplica = label.getValue();
+            }
+            else {
+                if (haDeduplicator.isClusterLabel(label.getName())) {
+                    haCluster = label.getValue();
+                }
+                if (dropLabelsFilter.shouldKeep(label.getName())) {
+                    tagBuilder.put(label.getName(), label.getValue());
+                }
+                else {
+                    labelsDropped++;
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Label {} was dropped because it matched the drop label regex for metric {}", label.getName(), metricName);
+                    }
+                }
             }
         }
+
+        if (StringUtils.isNullOrEmpty(metricName)) {
+            return SeriesTags.invalid("No metric name was specified for the given metric. Missing __name__ label.");
+        }
+
+        ImmutableSortedMap<String, String> tags = tagBuilder.build();
+        LabelCardinalityTracker.MetricLabels trackedLabels = labelTracker.getMetricLabels(metricName);
+        int labelVersion = 0;
+        if (trackedLabels != null) {
+            ImmutableSortedMap<String, String> keptTags;
+            do {
+                // Filtered again if a label was stripped meanwhile, including by this series, so the tags match the version
+                labelVersion = trackedLabels.getVersion();
+                keptTags = labelTracker.filter(metricName, trackedLabels, tags);
+            }
+            while (labelVersion != trackedLabels.getVersion());
+            labelsDropped += tags.size() - keptTags.size();
+            tags = keptTags;
+        }
+
+        String kairosMetricName = metricPrefix != null ? metricPrefix + metricName : metricName;
+        SeriesTags seriesTags = new SeriesTags(kairosMetricName, tags, dropMetricsFilter.shouldKeep(metricName), labelsDropped,
+                haCluster, haReplica, collapseHistograms ? HistogramCollector.Part.of(kairosMetricName, tags) : null,
+                hasLongValues(metricName), trackedLabels, labelVersion);
+        if (seriesTags.keep && !cardinalityLimiter.admit(shard, seriesTags.metricName, labelVersion, seriesTags.fingerprint)) {
+            return seriesTags.limited();
+        }
+        return seriesTags;
+    }
+
+    private boolean isValidNumber(double value)
+    {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Returns true if the value is a whole number that a long holds exactly.
+     */
+    private static boolean isLong(double value)
+    {
+        return value >= -LONG_RANGE && value < LONG_RANGE && value == Math.rint(value);
     }
 
-    private static boolean shouldKeep(String value, Set<Pattern> patternSet)
+    private boolean hasLongValues(String metricName)
     {
-        for (Pattern pattern : patternSet) {
-            if (pattern.matcher(value).matches()) {
+        switch (longValues) {
+            case INTEGRAL:
+                return true;
+            case SUFFIX:
+                for (String suffix : longValueSuffixes) {
+                    if (metricName.endsWith(suffix)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
                 return false;
+        }
+    }
+
+    /**
+     * Adds the counts of a request to the self-metrics, which are reported on the KairosDB reporter schedule.
+     */
+    private void countMetrics(WriteStats stats)
+    {
+        metricsSent.add(stats.metricsSent);
+
+        // Every sample is sent or counted under one of the other statuses, what's left wasn't written
+        int failed = stats.samplesReceived - stats.metricsSent - stats.metricsDropped - stats.duplicates - stats.outOfOrder
+                - stats.samplesInvalid - stats.samplesLimited;
+        if (failed > 0) {
+            metricsFailed.add(failed);
+        }
+
+        metricsInvalid.add(stats.samplesInvalid);
+        metricsLimited.add(stats.samplesLimited);
+        metricsOutOfOrder.add(stats.outOfOrder);
+        metricsDropped.add(stats.metricsDropped);
+        labelsDropped.add(stats.labelsDropped);
+        dataPointsLong.add(stats.samplesLong);
+        dataPointsDouble.add(stats.samplesDouble);
+    }
+
+    private void countException(Throwable e)
+    {
+        // Tagged with the exception type rather than its message so the number of counters stays bounded
+        exceptions.computeIfAbsent(e.getClass().getSimpleName(), name -> {
+            LongAdder count = new LongAdder();
+            adapterMetrics.addCounter(METRIC_EXCEPTIONS, "exception", name, count::sum);
+            return count;
+        }).increment();
+    }
+
+    /**
+     * The part of a request routed to one shard. Only used by the thread writing the shard, until the
+     * request waits for its work to be done and adds up the counts.
+     */
+    private static class ShardWork
+    {
+        private final int shard;
+        private final WriteStats stats = new WriteStats();
+        private HistogramCollector histogramCollector;
+        // Set by the request threads when series are handed to the shard
+        private volatile boolean routed;
+
+        private ShardWork(int shard)
+        {
+            this.shard = shard;
+        }
+
+        private HistogramCollector getHistogramCollector()
+        {
+            if (histogramCollector == null) {
+                histogramCollector = new HistogramCollector();
             }
+            return histogramCollector;
+        }
+    }
+
+    /**
+     * Hands the series read by one request thread to their shards, about a batch worth of samples at a time.
+     */
+    private class SeriesRouter
+    {
+        private final ShardWork[] shardWorks;
+        private final IngestQueue.QueuedWork queuedWork;
+        private final List<List<TimeSeries>> pending;
+        private final int[] pendingSamples;
+
+        private SeriesRouter(ShardWork[] shardWorks, IngestQueue.QueuedWork queuedWork)
+        {
+            this.shardWorks = shardWorks;
+            this.queuedWork = queuedWork;
+            this.pending = new ArrayList<>(shardWorks.length);
+            for (int i = 0; i < shardWorks.length; i++) {
+                pending.add(new ArrayList<>());
+            }
+            this.pendingSamples = new int[shardWorks.length];
+        }
+
+        private void add(TimeSeries timeSeries)
+        {
+            int shard = ingestQueue.getShard(routingHash(timeSeries.getLabelsList()));
+            pending.get(shard).add(timeSeries);
+            pendingSamples[shard] += Math.max(timeSeries.getSamplesCount(), 1);
+            if (pendingSamples[shard] >= batchPublisher.getBatchSize()) {
+                submit(shard);
+            }
+        }
+
+        private void flush()
+        {
+            for (int shard = 0; shard < shardWorks.length; shard++) {
+                if (!pending.get(shard).isEmpty()) {
+                    submit(shard);
+                }
+            }
+        }
+
+        private void submit(int shard)
+        {
+            List<TimeSeries> timeSeriesList = pending.get(shard);
+            pending.set(shard, new ArrayList<>());
+            pendingSamples[shard] = 0;
+            ShardWork shardWork = shardWorks[shard];
+            shardWork.routed = true;
+            ingestQueue.submit(shard, queuedWork, () -> writeTimeSeries(shardWork, timeSeriesList));
         }
-        return true;
     }
 }
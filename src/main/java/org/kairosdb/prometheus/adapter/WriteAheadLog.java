@@ -0,0 +1,501 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Optional write-ahead log for data points that have been accepted but not yet handed to KairosDB.
+ * <p>
+ * Batches are appended to memory-mapped segment files before they are published and a segment is
+ * deleted once it is full and every batch in it has been published. A published batch is marked as
+ * confirmed in its segment, so segments left behind by a restart only replay the batches that
+ * weren't confirmed. Batches are confirmed out of order by the shards of the ingest queue, which is
+ * why each record is marked instead of keeping a single confirmed offset. A write request is only
+ * answered once its batches are published, so the log holds the batches that were being published
+ * when the process stopped. With a sync interval, appended data is forced to disk by a background
+ * thread, otherwise the log relies on the operating system to write the mapped pages.
+ * <p>
+ * A record is a length, a CRC32 of the payload and the payload. The payload holds the data points of
+ * a batch, where a data point of the same series or data type as the one before it doesn't repeat
+ * the metric name and tags or the type. Confirming a record negates its length. A zero length or a
+ * bad checksum ends a segment. Mapped segments are unmapped when they are deleted instead of
+ * waiting for the garbage collector.
+ */
+public class WriteAheadLog implements KairosDBService
+{
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String ENABLED_PROP = "kairosdb.plugin.prometheus-adapter.wal.enabled";
+    private static final String DIRECTORY_PROP = "kairosdb.plugin.prometheus-adapter.wal.directory";
+    private static final String SEGMENT_SIZE_PROP = "kairosdb.plugin.prometheus-adapter.wal.segmentSize";
+    private static final String SYNC_INTERVAL_PROP = "kairosdb.plugin.prometheus-adapter.wal.syncInterval";
+
+    private static final String METRIC_APPENDED_BYTES = "kairosdb.prometheus.write-adapter.wal.appended.bytes";
+    private static final String METRIC_SYNCS = "kairosdb.prometheus.write-adapter.wal.sync.count";
+    private static final String METRIC_REPLAYED = "kairosdb.prometheus.write-adapter.wal.replayed.count";
+    private static final String METRIC_SEGMENTS = "kairosdb.prometheus.write-adapter.wal.segment.count";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SAME_SERIES = 1;
+    private static final int SAME_TYPE = 2;
+
+    private final boolean enabled;
+    private final File directory;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final Publisher<DataPointEvent> dataPointPublisher;
+    private final KairosDataPointFactory dataPointFactory;
+    private final LongAdder appendedBytes = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final AtomicInteger segments = new AtomicInteger();
+
+    private ScheduledExecutorService syncExecutor;
+    private Segment activeSegment;
+    private long nextSegmentId;
+    private volatile boolean running;
+
+    /**
+     * @param segmentSize  size in bytes of a segment file. Larger batches get a segment of their own.
+     * @param syncInterval milliseconds between forcing the log to disk. 0 disables syncing.
+     */
+    @Inject
+    public WriteAheadLog(@Named(ENABLED_PROP) boolean enabled, @Named(DIRECTORY_PROP) String directory,
+            @Named(SEGMENT_SIZE_PROP) int segmentSize, @Named(SYNC_INTERVAL_PROP) long syncInterval,
+            FilterEventBus eventBus, KairosDataPointFactory dataPointFactory, AdapterMetrics adapterMetrics)
+    {
+        checkArgument(segmentSize > RECORD_HEADER_SIZE, "segmentSize is too small");
+        checkNotNull(eventBus, "eventBus must not be null");
+        this.enabled = enabled;
+        this.directory = new File(directory);
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.dataPointPublisher = eventBus.createPublisher(DataPointEvent.class);
+        this.dataPointFactory = checkNotNull(dataPointFactory, "dataPointFactory must not be null");
+
+        checkNotNull(adapterMetrics, "adapterMetrics must not be null");
+        adapterMetrics.addCounter(METRIC_APPENDED_BYTES, null, null, appendedBytes::sum);
+        adapterMetrics.addCounter(METRIC_SYNCS, null, null, syncs::sum);
+        adapterMetrics.addCounter(METRIC_REPLAYED, null, null, replayed::sum);
+        adapterMetrics.addGauge(METRIC_SEGMENTS, null, null, segments::get);
+    }
+
+    @Override
+    public void start()
+    {
+        if (!enabled) {
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new UncheckedIOException(new IOException("Unable to create write-ahead log directory " + directory));
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                nextSegmentId = Math.max(nextSegmentId, segmentId(file) + 1);
+                replay(file);
+                if (!file.delete()) {
+                    logger.warn("Unable to delete replayed write-ahead log segment {}", file);
+                }
+            }
+        }
+
+        synchronized (this) {
+            activeSegment = newSegment(segmentSize);
+        }
+
+        running = true;
+        if (syncInterval > 0) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("prometheus-adapter-wal-sync")
+                    .setDaemon(true)
+                    .build());
+            syncExecutor.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        synchronized (this) {
+            activeSegment.seal();
+        }
+    }
+
+    /**
+     * Appends the data points to the log. The returned entry must be confirmed once the data points
+     * have been published. Returns null if the log is disabled.
+     */
+    Entry append(List<DataPointEvent> events)
+    {
+        if (!running) {
+            return null;
+        }
+
+        byte[] record = encode(events);
+        synchronized (this) {
+            // The record already starts with its header
+            if (activeSegment.remaining() < record.length) {
+                activeSegment.seal();
+                activeSegment = newSegment(Math.max(segmentSize, record.length));
+            }
+            int offset = activeSegment.buffer.position();
+            activeSegment.buffer.put(record);
+            activeSegment.pending.incrementAndGet();
+            appendedBytes.add(record.length);
+            return new Entry(activeSegment, offset, record.length - RECORD_HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Marks the data points of the entry as published so they aren't replayed and its segment can be deleted.
+     */
+    void confirm(Entry entry)
+    {
+        if (entry != null) {
+            entry.segment.confirm(entry.offset, entry.length);
+        }
+    }
+
+    private void sync()
+    {
+        Segment segment;
+        synchronized (this) {
+            segment = activeSegment;
+        }
+
+        // Segments before the active one were forced when they were sealed
+        segment.force();
+        syncs.increment();
+    }
+
+    private Segment newSegment(int size)
+    {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segments.incrementAndGet();
+            return new Segment(file, buffer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long segmentId(File file)
+    {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void replay(File file)
+    {
+        int count = 0;
+        MappedByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 && -length <= buffer.remaining()) {
+                    // Published before the restart
+                    buffer.position(buffer.position() - length);
+                    continue;
+                }
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                if (checksum(payload) != checksum) {
+                    logger.warn("Write-ahead log segment {} has a corrupt record, skipping the rest of it", file);
+                    break;
+                }
+                count += replay(payload);
+            }
+        }
+        catch (IOException e) {
+            logger.error("Error replaying write-ahead log segment " + file, e);
+        }
+        finally {
+            if (buffer != null) {
+                unmap(buffer);
+            }
+        }
+
+        replayed.add(count);
+        logger.info("Replayed {} data points from write-ahead log segment {}", count, file);
+    }
+
+    private int replay(byte[] payload)
+            throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = input.readInt();
+        String metricName = null;
+        ImmutableSortedMap<String, String> tags = null;
+        String type = null;
+        for (int i = 0; i < count; i++) {
+            int flags = input.readByte();
+            if ((flags & SAME_SERIES) == 0) {
+                metricName = readString(input);
+                int tagCount = input.readInt();
+                ImmutableSortedMap.Builder<String, String> builder = ImmutableSortedMap.naturalOrder();
+                for (int j = 0; j < tagCount; j++) {
+                    builder.put(readString(input), readString(input));
+                }
+                tags = builder.build();
+            }
+            if ((flags & SAME_TYPE) == 0) {
+                type = readString(input);
+            }
+            int ttl = input.readInt();
+            long timestamp = input.readLong();
+            DataPoint dataPoint = dataPointFactory.createDataPoint(type, timestamp, input);
+            dataPointPublisher.post(new DataPointEvent(metricName, tags, dataPoint, ttl));
+        }
+        return count;
+    }
+
+    private static byte[] encode(List<DataPointEvent> events)
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + events.size() * 24);
+            DataOutputStream output = new DataOutputStream(bytes);
+            // Room for the record header, filled in below
+            output.writeLong(0);
+            output.writeInt(events.size());
+
+            DataPointEvent previous = null;
+            for (DataPointEvent event : events) {
+                DataPoint dataPoint = event.getDataPoint();
+                boolean sameSeries = previous != null && previous.getMetricName().equals(event.getMetricName())
+                        && previous.getTags().equals(event.getTags());
+                boolean sameType = previous != null
+                        && previous.getDataPoint().getDataStoreDataType().equals(dataPoint.getDataStoreDataType());
+
+                output.writeByte((sameSeries ? SAME_SERIES : 0) | (sameType ? SAME_TYPE : 0));
+                if (!sameSeries) {
+                    writeString(output, event.getMetricName());
+                    output.writeInt(event.getTags().size());
+                    for (Map.Entry<String, String> tag : event.getTags().entrySet()) {
+                        writeString(output, tag.getKey());
+                        writeString(output, tag.getValue());
+                    }
+                }
+                if (!sameType) {
+                    writeString(output, dataPoint.getDataStoreDataType());
+                }
+                output.writeInt(event.getTtl());
+                output.writeLong(dataPoint.getTimestamp());
+                dataPoint.writeValueToBuffer(output);
+                previous = event;
+            }
+
+            byte[] record = bytes.toByteArray();
+            int length = record.length - RECORD_HEADER_SIZE;
+            ByteBuffer header = ByteBuffer.wrap(record, 0, RECORD_HEADER_SIZE);
+            header.putInt(length);
+            header.putInt(checksum(record, RECORD_HEADER_SIZE, length));
+            return record;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Releases the mapping of the buffer, which must not be used afterwards. The mapping is left to the
+     * garbage collector if the JVM doesn't allow it.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (NoSuchMethodException e) {
+                // Java 8 exposes the cleaner on the buffer itself
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object bufferCleaner = cleaner.invoke(buffer);
+                bufferCleaner.getClass().getMethod("clean").invoke(bufferCleaner);
+                return;
+            }
+            invokeCleaner.invoke(field.get(null), buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Unable to unmap write-ahead log segment", e);
+        }
+    }
+
+    private static int checksum(byte[] bytes)
+    {
+        return checksum(bytes, 0, bytes.length);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream output, String value)
+            throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input)
+            throws IOException
+    {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Position of an appended batch in the log.
+     */
+    static class Entry
+    {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Entry(Segment segment, int offset, int length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private class Segment
+    {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean sealed;
+        private boolean deleted;
+
+        private Segment(File file, MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private int remaining()
+        {
+            return buffer.remaining();
+        }
+
+        private synchronized void force()
+        {
+            if (!deleted) {
+                buffer.force();
+            }
+        }
+
+        /**
+         * Called when no more batches are appended to the segment.
+         */
+        private void seal()
+        {
+            force();
+            sealed = true;
+            if (pending.get() == 0) {
+                delete();
+            }
+        }
+
+        private void confirm(int offset, int length)
+        {
+            synchronized (this) {
+                if (!deleted) {
+                    buffer.putInt(offset, -length);
+                }
+            }
+            if (pending.decrementAndGet() == 0 && sealed) {
+                delete();
+            }
+        }
+
+        private synchronized void delete()
+        {
+            if (!deleted) {
+                deleted = true;
+                segments.decrementAndGet();
+                unmap(buffer);
+                if (!file.delete()) {
+                    logger.warn("Unable to delete write-ahead log segment {}", file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.kairosdb.prometheus.adapter;
+
+import java.util.Arrays;
+
+/**
+ * Counts accumulated while processing the time series of a single write request.
+ */
+class WriteStats
+{
+    int seriesReceived;
+    int samplesReceived;
+    int metricsSent;
+    // Samples sent as long and double data points
+    int samplesLong;
+    int samplesDouble;
+    int metricsDropped;
+    int labelsDropped;
+    int duplicates;
+    int outOfOrder;
+    int seriesInvalid;
+    int samplesInvalid;
+    int seriesLimited;
+    int samplesLimited;
+    // Reason the first invalid series was skipped, returned to the client
+    String invalidReason;
+    // Newest timestamp written for each series, applied to the high-water marks once the request succeeds
+    long[] markFingerprints = new long[0];
+    long[] markTimestamps = new long[0];
+    int marks;
+    // Time spent turning series into data points and waiting for them to be published
+    long processNanos;
+    long flushNanos;
+
+    void add(WriteStats stats)
+    {
+        seriesReceived += stats.seriesReceived;
+        samplesReceived += stats.samplesReceived;
+        metricsSent += stats.metricsSent;
+        samplesLong += stats.samplesLong;
+        samplesDouble += stats.samplesDouble;
+        metricsDropped += stats.metricsDropped;
+        labelsDropped += stats.labelsDropped;
+        duplicates += stats.duplicates;
+        outOfOrder += stats.outOfOrder;
+        processNanos += stats.processNanos;
+        flushNanos += stats.flushNanos;
+        seriesInvalid += stats.seriesInvalid;
+        samplesInvalid += stats.samplesInvalid;
+        seriesLimited += stats.seriesLimited;
+        samplesLimited += stats.samplesLimited;
+        if (invalidReason == null) {
+            invalidReason = stats.invalidReason;
+        }
+        for (int i = 0; i < stats.marks; i++) {
+            addMark(stats.markFingerprints[i], stats.markTimestamps[i]);
+        }
+    }
+
+    void addInvalid(String reason, int samples)
+    {
+        seriesInvalid++;
+        samplesInvalid += samples;
+        if (invalidReason == null) {
+            invalidReason = reason;
+        }
+    }
+
+    /**
+     * Returns true if the request had series and none of them could be written, so sending it again can't succeed.
+     */
+    boolean isAllInvalid()
+    {
+        return seriesInvalid > 0 && seriesInvalid == seriesReceived;
+    }
+
+    /**
+     * Summary of a request that had invalid series, one "name: value" pair per line.
+     */
+    String getSummary()
+    {
+        return "series-received: " + seriesReceived + "\n"
+                + "series-invalid: " + seriesInvalid + "\n"
+                + "samples-sent: " + metricsSent + "\n"
+                + "first-error: " + invalidReason + "\n";
+    }
+
+    void addMark(long fingerprint, long timestamp)
+    {
+        if (marks == markFingerprints.length) {
+            int length = Math.max(16, marks * 2);
+            markFingerprints = Arrays.copyOf(markFingerprints, length);
+            markTimestamps = Arrays.copyOf(markTimestamps, length);
+        }
+        markFingerprints[marks] = fingerprint;
+        markTimestamps[marks] = timestamp;
+        marks++;
+    }
+}
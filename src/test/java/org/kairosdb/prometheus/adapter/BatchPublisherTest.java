@@ -0,0 +1,91 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.net.UnknownHostException;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchPublisherTest
+{
+    @Mock
+    private FilterEventBus mockEventBus;
+    @Mock
+    private Publisher<DataPointEvent> mockPublisher;
+    @Mock
+    private KairosDataPointFactory mockDataPointFactory;
+
+    @Before
+    public void setup()
+    {
+        MockitoAnnotations.initMocks(this);
+        when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
+    }
+
+    @Test
+    /*
+     * Verify that data points are held until the batch is full or flushed.
+     */
+    public void testBatch()
+            throws UnknownHostException
+    {
+        BatchPublisher.DataPointBatch batch = newBatchPublisher(2).newBatch();
+
+        batch.add(newEvent(1));
+        verify(mockPublisher, never()).post(any());
+
+        batch.add(newEvent(2));
+        batch.add(newEvent(3));
+        verify(mockPublisher, times(2)).post(any());
+
+        batch.flush();
+        verify(mockPublisher).post(newEvent(3));
+        verify(mockPublisher, times(3)).post(any());
+    }
+
+    @Test
+    /*
+     * Verify that a batch size of 1 publishes every data point as soon as it is added.
+     */
+    public void testNoBatching()
+            throws UnknownHostException
+    {
+        BatchPublisher.DataPointBatch batch = newBatchPublisher(1).newBatch();
+
+        batch.add(newEvent(1));
+        verify(mockPublisher).post(newEvent(1));
+
+        batch.flush();
+        verify(mockPublisher, times(1)).post(any());
+    }
+
+    private BatchPublisher newBatchPublisher(int batchSize)
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        return new BatchPublisher(mockEventBus, batchSize, newWriteAheadLog(adapterMetrics), new RequestHistograms(adapterMetrics), adapterMetrics);
+    }
+
+    private WriteAheadLog newWriteAheadLog(AdapterMetrics adapterMetrics)
+    {
+        return new WriteAheadLog(false, "wal", 1024, 0, mockEventBus, mockDataPointFactory, adapterMetrics);
+    }
+
+    private DataPointEvent newEvent(long timestamp)
+    {
+        return new DataPointEvent("metric1", ImmutableSortedMap.of("label1", "value1"), new DoubleDataPoint(timestamp, 1.0));
+    }
+}
@@ -0,0 +1,142 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class CardinalityLimiterTest
+{
+    @Test
+    /*
+     * Verify that admitted series are still admitted after the limit is reached and new ones are rejected.
+     */
+    public void testLimit()
+            throws UnknownHostException
+    {
+        CardinalityLimiter limiter = newLimiter(100, 0, 10, 1);
+        List<Long> admitted = new ArrayList<>();
+        for (long i = 0; i < 200; i++) {
+            long fingerprint = SeriesFingerprint.of("metric", series(i));
+            if (limiter.admit(0, "metric", 0, fingerprint)) {
+                admitted.add(fingerprint);
+            }
+        }
+
+        assertThat(admitted.size(), equalTo(100));
+        for (long fingerprint : admitted) {
+            assertThat(limiter.admit(0, "metric", 0, fingerprint), equalTo(true));
+        }
+        assertThat(limiter.admit(0, "other", 0, SeriesFingerprint.of("other", series(0))), equalTo(true));
+        assertThat(Math.abs(limiter.getEstimates().get("metric") - 200) <= 20, equalTo(true));
+    }
+
+    @Test
+    /*
+     * Verify that only the limit of series gets through when many more new series are offered.
+     */
+    public void testManyNewSeries()
+            throws UnknownHostException
+    {
+        CardinalityLimiter limiter = newLimiter(1000, 0, 10, 1);
+        int admitted = 0;
+        for (long i = 0; i < 100000; i++) {
+            if (limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(i)))) {
+                admitted++;
+            }
+        }
+
+        assertThat(admitted, equalTo(1000));
+        assertThat(Math.abs(limiter.getEstimates().get("metric") - 100000) <= 10000, equalTo(true));
+    }
+
+    @Test
+    /*
+     * Verify that one in every sample rate new series over the limit is admitted.
+     */
+    public void testSampleRate()
+            throws UnknownHostException
+    {
+        CardinalityLimiter limiter = newLimiter(1, 10, 10, 1);
+        limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(0)));
+
+        int admitted = 0;
+        for (long i = 1; i < 1001; i++) {
+            if (limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(i)))) {
+                admitted++;
+            }
+        }
+        assertThat("admitted " + admitted, admitted >= 100 && admitted < 200, equalTo(true));
+    }
+
+    @Test
+    /*
+     * Verify that every series is admitted and no metric is tracked when the limit is 0.
+     */
+    public void testDisabled()
+            throws UnknownHostException
+    {
+        CardinalityLimiter limiter = newLimiter(0, 0, 10, 1);
+        for (long i = 0; i < 100; i++) {
+            assertThat(limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(i))), equalTo(true));
+        }
+        assertThat(limiter.getEstimates().isEmpty(), equalTo(true));
+    }
+
+    @Test
+    /*
+     * Verify that the limit is shared by the shards and each shard still admits the series it admitted before.
+     */
+    public void testShards()
+            throws UnknownHostException
+    {
+        CardinalityLimiter limiter = newLimiter(10, 0, 10, 2);
+        for (long i = 0; i < 8; i++) {
+            assertThat(limiter.admit((int) (i % 2), "metric", 0, SeriesFingerprint.of("metric", series(i))), equalTo(true));
+        }
+        assertThat(limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(8))), equalTo(true));
+        assertThat(limiter.admit(1, "metric", 0, SeriesFingerprint.of("metric", series(9))), equalTo(true));
+        assertThat(limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(10))), equalTo(false));
+        assertThat(limiter.admit(1, "metric", 0, SeriesFingerprint.of("metric", series(11))), equalTo(false));
+
+        for (long i = 0; i < 10; i++) {
+            assertThat(limiter.admit((int) (i % 2), "metric", 0, SeriesFingerprint.of("metric", series(i))), equalTo(true));
+        }
+        assertThat(limiter.getEstimates().get("metric"), equalTo(12L));
+    }
+
+    @Test
+    /*
+     * Verify that a newer label version starts the metric over, so series with new fingerprints fit under the limit again.
+     */
+    public void testLabelVersion()
+            throws UnknownHostException
+    {
+        CardinalityLimiter limiter = newLimiter(2, 0, 10, 2);
+        assertThat(limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(0))), equalTo(true));
+        assertThat(limiter.admit(1, "metric", 0, SeriesFingerprint.of("metric", series(1))), equalTo(true));
+        assertThat(limiter.admit(0, "metric", 0, SeriesFingerprint.of("metric", series(2))), equalTo(false));
+
+        assertThat(limiter.admit(0, "metric", 1, SeriesFingerprint.of("metric", series(3))), equalTo(true));
+        assertThat(limiter.admit(1, "metric", 1, SeriesFingerprint.of("metric", series(4))), equalTo(true));
+        assertThat(limiter.admit(0, "metric", 1, SeriesFingerprint.of("metric", series(5))), equalTo(false));
+        assertThat(limiter.admit(1, "metric", 1, SeriesFingerprint.of("metric", series(4))), equalTo(true));
+    }
+
+    private CardinalityLimiter newLimiter(int limit, int sampleRate, int maxMetrics, int shards)
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        return new CardinalityLimiter(limit, sampleRate, maxMetrics, new IngestQueue(0, shards, 0, 5, adapterMetrics), adapterMetrics);
+    }
+
+    private static ImmutableSortedMap<String, String> series(long id)
+    {
+        return ImmutableSortedMap.of("id", Long.toString(id));
+    }
+}
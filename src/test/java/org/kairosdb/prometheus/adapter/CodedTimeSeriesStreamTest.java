@@ -0,0 +1,164 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+import prometheus.Remote.WriteRequest;
+import prometheus.Types.Label;
+import prometheus.Types.Sample;
+import prometheus.Types.TimeSeries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class CodedTimeSeriesStreamTest
+{
+    @Test
+    /*
+     * Verify that the streamed series are the same as the ones parsed by the generated WriteRequest parser.
+     */
+    public void testMatchesGeneratedParser()
+            throws IOException
+    {
+        WriteRequest request = WriteRequest.newBuilder()
+                .addTimeseries(newTimeSeries("metric1", 1L, 1.5, "label1", "value1"))
+                .addTimeseries(newTimeSeries("metric2", 2L, -3.0, "label2", "v\u00e4lue2"))
+                .addTimeseries(TimeSeries.newBuilder().addSamples(Sample.newBuilder().setTimestamp(3L)))
+                .build();
+
+        List<TimeSeries> streamed = decode(request.toByteArray());
+
+        assertThat(streamed, equalTo(request.getTimeseriesList()));
+    }
+
+    @Test
+    /*
+     * Verify that fields the decoder doesn't know about are skipped.
+     */
+    public void testUnknownFieldsSkipped()
+            throws IOException
+    {
+        TimeSeries timeSeries = newTimeSeries("metric1", 1L, 1.5, "label1", "value1");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        output.writeString(7, "unknown");
+        output.writeMessage(1, timeSeries);
+        output.writeInt64(8, 42L);
+        output.flush();
+
+        assertThat(decode(bytes.toByteArray()), equalTo(Collections.singletonList(timeSeries)));
+    }
+
+    @Test
+    /*
+     * Verify that interned label strings are decoded correctly and repeated strings are the same instance.
+     */
+    public void testInterning()
+            throws IOException
+    {
+        WriteRequest request = WriteRequest.newBuilder()
+                .addTimeseries(newTimeSeries("metric1", 1L, 1.5, "label1", "v\u00e4lue1"))
+                .addTimeseries(newTimeSeries("metric1", 2L, 2.5, "label1", "v\u00e4lue1"))
+                .build();
+        LabelInterner interner = new LabelInterner(1024, 128);
+
+        List<TimeSeries> streamed = decode(request.toByteArray(), interner);
+
+        assertThat(streamed, equalTo(request.getTimeseriesList()));
+        assertThat(streamed.get(0).getLabels(1).getValue(), sameInstance(streamed.get(1).getLabels(1).getValue()));
+        assertThat(interner.getMissCount(), equalTo(4L));
+        assertThat(interner.getHitCount(), equalTo(4L));
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void testInterningInvalidUtf8()
+            throws IOException
+    {
+        ByteString invalid = ByteString.copyFrom(new byte[]{(byte) 0xC3, (byte) 0x28});
+        ByteString label = encode(output -> output.writeBytes(1, invalid));
+        ByteString timeSeries = encode(output -> output.writeBytes(1, label));
+
+        decode(encode(output -> output.writeBytes(1, timeSeries)).toByteArray(), new LabelInterner(1024, 128));
+    }
+
+    @Test
+    /*
+     * Verify that a stream that failed part way keeps its body for diagnostics until it is closed.
+     */
+    public void testBodyKeptAfterFailure()
+            throws IOException
+    {
+        byte[] bytes = WriteRequest.newBuilder()
+                .addTimeseries(newTimeSeries("metric1", 1L, 1.5, "label1", "value1"))
+                .build().toByteArray();
+        int[] closed = new int[1];
+        CodedTimeSeriesStream stream = new CodedTimeSeriesStream(bytes, 0, bytes.length, null, () -> closed[0]++);
+
+        try {
+            stream.forEach(timeSeries -> {
+                throw new IllegalStateException("failed");
+            });
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+
+        assertThat(stream.writeTo(dump), equalTo(true));
+        assertThat(dump.toByteArray(), equalTo(bytes));
+        assertThat(stream.toString(), equalTo("CodedTimeSeriesStream{bytes=" + bytes.length + ", seriesDecoded=1, lastMetric=metric1}"));
+        assertThat(closed[0], equalTo(0));
+
+        stream.close();
+        stream.close();
+        assertThat(stream.writeTo(dump), equalTo(false));
+        assertThat(closed[0], equalTo(1));
+    }
+
+    private ByteString encode(Writer writer)
+            throws IOException
+    {
+        ByteString.Output bytes = ByteString.newOutput();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        writer.write(output);
+        output.flush();
+        return bytes.toByteString();
+    }
+
+    private List<TimeSeries> decode(byte[] bytes)
+            throws IOException
+    {
+        return decode(bytes, null);
+    }
+
+    private List<TimeSeries> decode(byte[] bytes, LabelInterner interner)
+            throws IOException
+    {
+        List<TimeSeries> series = new ArrayList<>();
+        new CodedTimeSeriesStream(bytes, 0, bytes.length, interner, null).forEach(series::add);
+        return series;
+    }
+
+    private TimeSeries newTimeSeries(String metricName, long timestamp, double value, String labelName, String labelValue)
+    {
+        return TimeSeries.newBuilder()
+                .addLabels(Label.newBuilder().setName("__name__").setValue(metricName))
+                .addLabels(Label.newBuilder().setName(labelName).setValue(labelValue))
+                .addSamples(Sample.newBuilder().setTimestamp(timestamp).setValue(value))
+                .build();
+    }
+
+    private interface Writer
+    {
+        void write(CodedOutputStream output) throws IOException;
+    }
+}
@@ -0,0 +1,51 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class DropFilterTest
+{
+    @Test
+    /*
+     * Verify that names matching any expression are dropped.
+     */
+    public void testShouldKeep()
+    {
+        DropFilter filter = new DropFilter("^foo_.*$, ^bar$", 100);
+
+        assertFalse(filter.shouldKeep("foo_bar"));
+        assertFalse(filter.shouldKeep("bar"));
+        assertTrue(filter.shouldKeep("foo.bar"));
+        assertTrue(filter.shouldKeep("barbar"));
+    }
+
+    @Test
+    /*
+     * Verify that decisions are cached after the first time a name is seen.
+     */
+    public void testDecisionsCached()
+    {
+        DropFilter filter = new DropFilter("^foo_.*$", 100);
+
+        filter.shouldKeep("foo_bar");
+        filter.shouldKeep("foo_bar");
+        filter.shouldKeep("foo.bar");
+        filter.shouldKeep("foo_bar");
+
+        assertThat(filter.getMissCount(), equalTo(2L));
+        assertThat(filter.getHitCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testNoExpressions()
+    {
+        DropFilter filter = new DropFilter("", 100);
+
+        assertTrue(filter.shouldKeep("foo_bar"));
+        assertThat(filter.getMissCount(), equalTo(0L));
+    }
+}
@@ -0,0 +1,91 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import prometheus.Remote.WriteRequest;
+import prometheus.Types.Label;
+import prometheus.Types.TimeSeries;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ErrorDiagnosticsTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    /*
+     * Verify that one in every sample rate failed requests is dumped until the maximum number of dumps is reached.
+     */
+    public void testSampledDumps()
+            throws IOException
+    {
+        File directory = new File(folder.getRoot(), "dumps");
+        ErrorDiagnostics errorDiagnostics = new ErrorDiagnostics(60000, directory.getPath(), 2, 2, new AdapterMetrics());
+        WriteRequest request = newRequest(3);
+
+        for (int i = 0; i < 10; i++) {
+            errorDiagnostics.requestFailed("Error processing request", TimeSeriesStream.of(request), new IllegalStateException("failed"));
+        }
+
+        File[] dumps = directory.listFiles();
+        assertThat(dumps.length, equalTo(2));
+        assertThat(WriteRequest.parseFrom(Files.readAllBytes(dumps[0].toPath())), equalTo(request));
+    }
+
+    @Test
+    /*
+     * Verify that a body that couldn't be decompressed is dumped as it was received.
+     */
+    public void testBodyDump()
+            throws IOException
+    {
+        File directory = new File(folder.getRoot(), "dumps");
+        ErrorDiagnostics errorDiagnostics = new ErrorDiagnostics(60000, directory.getPath(), 1, 2, new AdapterMetrics());
+        SnappyBlockDecoder decoder = new SnappyBlockDecoder(1, 1024, 1024);
+        byte[] body = {0x05, 0x7f, 0x7f};
+
+        try (SnappyBlockDecoder.Buffer buffer = decoder.read(new ByteArrayInputStream(body))) {
+            try {
+                buffer.uncompress();
+                throw new AssertionError("Expected InvalidBodyException");
+            }
+            catch (SnappyBlockDecoder.InvalidBodyException e) {
+                errorDiagnostics.bodyFailed("Invalid request body", buffer, e);
+            }
+        }
+
+        File[] dumps = directory.listFiles();
+        assertThat(dumps.length, equalTo(1));
+        assertThat(dumps[0].getName().endsWith(".snappy"), equalTo(true));
+        assertThat(Files.readAllBytes(dumps[0].toPath()), equalTo(body));
+    }
+
+    @Test
+    /*
+     * Verify that the summary of a request names only the first few metrics.
+     */
+    public void testSummary()
+    {
+        WriteRequest request = newRequest(7);
+
+        assertThat(TimeSeriesStream.of(request).toString(), equalTo("WriteRequest{series=7, bytes=" + request.getSerializedSize()
+                + ", metrics=[metric0, metric1, metric2, metric3, metric4, ...]}"));
+    }
+
+    private WriteRequest newRequest(int series)
+    {
+        WriteRequest.Builder request = WriteRequest.newBuilder();
+        for (int i = 0; i < series; i++) {
+            request.addTimeseries(TimeSeries.newBuilder().addLabels(Label.newBuilder().setName("__name__").setValue("metric" + i)));
+        }
+        return request.build();
+    }
+}
@@ -0,0 +1,42 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class FingerprintSetTest
+{
+    @Test
+    /*
+     * Verify that fingerprints are found after the table grew and that adding one again doesn't change the set.
+     */
+    public void testAddAndContains()
+    {
+        FingerprintSet set = new FingerprintSet();
+        for (long i = 0; i < 10000; i++) {
+            assertThat(set.add(i * 0x9E3779B97F4A7C15L), equalTo(true));
+        }
+
+        for (long i = 0; i < 10000; i++) {
+            assertThat(set.contains(i * 0x9E3779B97F4A7C15L), equalTo(true));
+            assertThat(set.add(i * 0x9E3779B97F4A7C15L), equalTo(false));
+        }
+        assertThat(set.contains(1), equalTo(false));
+        assertThat(set.size(), equalTo(10000));
+    }
+
+    @Test
+    /*
+     * Verify that the fingerprint 0, which marks empty slots, is kept like any other.
+     */
+    public void testZero()
+    {
+        FingerprintSet set = new FingerprintSet();
+        assertThat(set.contains(0), equalTo(false));
+        assertThat(set.add(0), equalTo(true));
+        assertThat(set.add(0), equalTo(false));
+        assertThat(set.contains(0), equalTo(true));
+        assertThat(set.size(), equalTo(1));
+    }
+}
@@ -0,0 +1,51 @@
+package org.kairosdb.prometheus.adapter;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class FlightRecorderEventsTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    /*
+     * Verify that an event is only created while it is enabled in a recording and that its fields are recorded.
+     */
+    public void testWriteEvent()
+            throws IOException
+    {
+        assertThat(FlightRecorderEvents.beginWrite(), nullValue());
+
+        File file = folder.newFile("write.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.kairosdb.prometheus.Write");
+            recording.start();
+            FlightRecorderEvents.Write event = FlightRecorderEvents.beginWrite();
+            event.status = 200;
+            event.series = 3;
+            event.samplesSent = 5;
+            event.commit();
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        assertThat(events.size(), equalTo(1));
+        assertThat(events.get(0).getInt("status"), equalTo(200));
+        assertThat(events.get(0).getInt("series"), equalTo(3));
+        assertThat(events.get(0).getInt("samplesSent"), equalTo(5));
+    }
+}
@@ -0,0 +1,53 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class HaDeduplicatorTest
+{
+    @Test
+    /*
+     * Verify that the first replica is elected and the other one takes over after the failover timeout.
+     */
+    public void testFailover()
+            throws UnknownHostException
+    {
+        HaDeduplicator deduplicator = newDeduplicator();
+
+        assertThat(deduplicator.accept(0, "prod", "a", 0, 1), equalTo(true));
+        assertThat(deduplicator.accept(0, "prod", "b", 500, 1), equalTo(false));
+        assertThat(deduplicator.accept(0, "prod", "a", 800, 1), equalTo(true));
+        assertThat(deduplicator.accept(0, "prod", "b", 1500, 1), equalTo(false));
+
+        // Replica a stopped sending at 800
+        assertThat(deduplicator.accept(0, "prod", "b", 1801, 1), equalTo(true));
+        assertThat(deduplicator.accept(0, "prod", "a", 1900, 1), equalTo(false));
+    }
+
+    @Test
+    /*
+     * Verify that clusters are elected independently and series without both labels are accepted.
+     */
+    public void testClusters()
+            throws UnknownHostException
+    {
+        HaDeduplicator deduplicator = newDeduplicator();
+
+        assertThat(deduplicator.accept(0, "prod", "a", 0, 1), equalTo(true));
+        assertThat(deduplicator.accept(0, "dev", "b", 0, 1), equalTo(true));
+        assertThat(deduplicator.accept(0, "dev", "a", 0, 1), equalTo(false));
+        assertThat(deduplicator.accept(0, null, "b", 0, 1), equalTo(true));
+        assertThat(deduplicator.accept(0, "prod", null, 0, 1), equalTo(true));
+    }
+
+    private HaDeduplicator newDeduplicator()
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        return new HaDeduplicator(true, "cluster", "__replica__", 1000, new IngestQueue(0, 1, 0, 5, adapterMetrics), adapterMetrics);
+    }
+}
@@ -0,0 +1,61 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class HighWaterMarksTest
+{
+    @Test
+    /*
+     * Verify that marks only move forward and are forgotten once the series is idle.
+     */
+    public void testIdle()
+            throws UnknownHostException
+    {
+        HighWaterMarks marks = newHighWaterMarks(16, 1000);
+
+        assertThat(marks.get(0, 42, 0), equalTo(Long.MIN_VALUE));
+        update(marks, 42, 100, 0);
+        update(marks, 42, 50, 10);
+        assertThat(marks.get(0, 42, 500), equalTo(100L));
+        assertThat(marks.get(0, 42, 1011), equalTo(Long.MIN_VALUE));
+
+        update(marks, 42, 20, 2000);
+        assertThat(marks.get(0, 42, 2000), equalTo(20L));
+    }
+
+    @Test
+    /*
+     * Verify that the number of tracked series is bounded and the least recently updated series is evicted.
+     */
+    public void testEviction()
+            throws UnknownHostException
+    {
+        HighWaterMarks marks = newHighWaterMarks(4, 60000);
+
+        for (long fingerprint = 1; fingerprint <= 5; fingerprint++) {
+            update(marks, fingerprint, 100, fingerprint);
+        }
+
+        assertThat(marks.get(0, 1, 10), equalTo(Long.MIN_VALUE));
+        for (long fingerprint = 2; fingerprint <= 5; fingerprint++) {
+            assertThat(marks.get(0, fingerprint, 10), equalTo(100L));
+        }
+    }
+
+    private void update(HighWaterMarks marks, long fingerprint, long timestamp, long now)
+    {
+        marks.update(0, new long[] {fingerprint}, new long[] {timestamp}, 1, now);
+    }
+
+    private HighWaterMarks newHighWaterMarks(int size, long idleTimeout)
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        return new HighWaterMarks(size, idleTimeout, new IngestQueue(0, 1, 0, 5, adapterMetrics), adapterMetrics);
+    }
+}
@@ -0,0 +1,43 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest
+{
+    @Test
+    /*
+     * Verify that every value falls in a bucket whose highest value is within 1/16 above it.
+     */
+    public void testBucketPrecision()
+    {
+        long[] values = {0, 1, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            long highest = Histogram.highestValue(Histogram.bucket(value));
+            assertTrue(value + " -> " + highest, highest >= value && highest - value <= value / 16);
+        }
+        assertThat(Histogram.bucket(Long.MAX_VALUE), equalTo(Histogram.BUCKETS - 1));
+        assertThat(Histogram.bucket(-5), equalTo(0));
+    }
+
+    @Test
+    /*
+     * Verify the percentiles and maximum of the recorded values.
+     */
+    public void testPercentiles()
+    {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        long[] counts = new long[Histogram.BUCKETS];
+        histogram.copyCounts(counts);
+
+        assertThat(Histogram.valueAtPercentile(counts, 100, 50), equalTo(51L));
+        assertThat(Histogram.valueAtPercentile(counts, 100, 99), equalTo(99L));
+        assertThat(Histogram.maxValue(counts), equalTo(103L));
+    }
+}
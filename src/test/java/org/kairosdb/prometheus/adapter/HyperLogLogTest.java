@@ -0,0 +1,56 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest
+{
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    @Test
+    /*
+     * Verify that the estimate is within the expected error for small and large cardinalities.
+     */
+    public void testEstimate()
+    {
+        HyperLogLog sketch = new HyperLogLog(10);
+        for (int i = 0; i < 100; i++) {
+            sketch.add(hash(i));
+        }
+        assertTrue("estimate " + sketch.estimate(), Math.abs(sketch.estimate() - 100) <= 5);
+
+        for (int i = 100; i < 100000; i++) {
+            sketch.add(hash(i));
+        }
+        // 3 standard errors of a 1024 register sketch
+        assertTrue("estimate " + sketch.estimate(), Math.abs(sketch.estimate() - 100000) <= 10000);
+    }
+
+    @Test
+    /*
+     * Verify that adding a hash again changes neither the sketch nor the estimate.
+     */
+    public void testAddAgain()
+    {
+        HyperLogLog sketch = new HyperLogLog(10);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(hash(i));
+        }
+        long estimate = sketch.estimate();
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(sketch.add(hash(i)), equalTo(false));
+        }
+        assertThat(sketch.estimate(), equalTo(estimate));
+    }
+
+    private static long hash(int i)
+    {
+        return HASH_FUNCTION.hashInt(i).asLong();
+    }
+}
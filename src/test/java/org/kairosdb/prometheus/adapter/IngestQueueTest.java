@@ -0,0 +1,58 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class IngestQueueTest
+{
+    @Test
+    /*
+     * Verify that work is rejected once the queue is full and that queued work is run after start.
+     */
+    public void testFullQueue()
+            throws UnknownHostException, InterruptedException
+    {
+        IngestQueue queue = new IngestQueue(1, 1, 0, 5, new AdapterMetrics());
+        CountDownLatch latch = new CountDownLatch(1);
+
+        assertThat(queue.admit(), equalTo(true));
+        queue.submit(0, latch::countDown);
+        assertThat(queue.admit(), equalTo(false));
+        try {
+            queue.submit(0, latch::countDown);
+            throw new AssertionError("Expected the queue to be full");
+        }
+        catch (IngestQueue.QueueFullException expected) {
+        }
+
+        queue.start();
+        try {
+            assertThat(latch.await(5, TimeUnit.SECONDS), equalTo(true));
+        }
+        finally {
+            queue.stop();
+        }
+    }
+
+    @Test
+    /*
+     * Verify that work runs on the calling thread when the queue is disabled.
+     */
+    public void testDisabled()
+            throws UnknownHostException
+    {
+        IngestQueue queue = new IngestQueue(0, 1, 0, 5, new AdapterMetrics());
+        Thread[] ranOn = new Thread[1];
+
+        queue.submit(0, () -> ranOn[0] = Thread.currentThread());
+
+        assertThat(ranOn[0], equalTo(Thread.currentThread()));
+        assertThat(queue.admit(), equalTo(true));
+    }
+}
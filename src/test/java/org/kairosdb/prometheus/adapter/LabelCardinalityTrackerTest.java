@@ -0,0 +1,45 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class LabelCardinalityTrackerTest
+{
+    @Test
+    /*
+     * Verify that only the label over the budget is stripped and only from its own metric.
+     */
+    public void testValueBudget()
+            throws UnknownHostException
+    {
+        LabelCardinalityTracker tracker = new LabelCardinalityTracker(10, 0, 100, new AdapterMetrics());
+        for (int i = 0; i < 10; i++) {
+            ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("id", Integer.toString(i), "job", "a");
+            assertThat(tracker.filter("metric", tags), sameInstance(tags));
+        }
+
+        assertThat(tracker.filter("metric", ImmutableSortedMap.of("id", "10", "job", "a")), equalTo(ImmutableSortedMap.of("job", "a")));
+        assertThat(tracker.filter("metric", ImmutableSortedMap.of("id", "0", "job", "b")), equalTo(ImmutableSortedMap.of("job", "b")));
+        assertThat(tracker.filter("other", ImmutableSortedMap.of("id", "10")), equalTo(ImmutableSortedMap.of("id", "10")));
+    }
+
+    @Test
+    /*
+     * Verify that nothing is stripped when neither a budget nor a growth rate is set.
+     */
+    public void testDisabled()
+            throws UnknownHostException
+    {
+        LabelCardinalityTracker tracker = new LabelCardinalityTracker(0, 0, 100, new AdapterMetrics());
+        for (int i = 0; i < 100; i++) {
+            ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("id", Integer.toString(i));
+            assertThat(tracker.filter("metric", tags), sameInstance(tags));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.net.UnknownHostException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class MetricsResourceTest
+{
+    @Test
+    /*
+     * Verify that counters and gauges are rendered with their tag as a label and one type line per metric name.
+     */
+    public void testCountersAndGauges()
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        adapterMetrics.addCounter("kairosdb.prometheus.write-adapter.metrics-sent.count", "status", "sent", () -> 5);
+        adapterMetrics.addCounter("kairosdb.prometheus.write-adapter.metrics-sent.count", "status", "dro\"pped", () -> 2);
+        adapterMetrics.addGauge("kairosdb.prometheus.write-adapter.queue.depth", null, null, () -> 3);
+        // Reporting to KairosDB doesn't reset the counts rendered for Prometheus
+        adapterMetrics.getMetrics(System.currentTimeMillis());
+
+        Response response = new MetricsResource(adapterMetrics).metrics();
+
+        assertThat(response.getStatus(), equalTo(200));
+        assertThat(response.getEntity(), equalTo("# TYPE kairosdb_prometheus_write_adapter_metrics_sent_count counter\n"
+                + "kairosdb_prometheus_write_adapter_metrics_sent_count{status=\"sent\"} 5\n"
+                + "kairosdb_prometheus_write_adapter_metrics_sent_count{status=\"dro\\\"pped\"} 2\n"
+                + "# TYPE kairosdb_prometheus_write_adapter_queue_depth gauge\n"
+                + "kairosdb_prometheus_write_adapter_queue_depth 3\n"));
+    }
+
+    @Test
+    /*
+     * Verify that histograms are rendered as cumulative buckets bounded one below each power of two.
+     */
+    public void testHistogram()
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        Histogram histogram = new Histogram();
+        adapterMetrics.addHistogram("kairosdb.prometheus.write-adapter.phase.time", "phase", "write", histogram);
+        histogram.record(2);
+        histogram.record(100);
+
+        String text = (String) new MetricsResource(adapterMetrics).metrics().getEntity();
+
+        assertThat(text, containsString("# TYPE kairosdb_prometheus_write_adapter_phase_time histogram\n"));
+        assertThat(text, containsString("kairosdb_prometheus_write_adapter_phase_time_bucket{phase=\"write\",le=\"1\"} 0\n"));
+        assertThat(text, containsString("kairosdb_prometheus_write_adapter_phase_time_bucket{phase=\"write\",le=\"3\"} 1\n"));
+        assertThat(text, containsString("kairosdb_prometheus_write_adapter_phase_time_bucket{phase=\"write\",le=\"127\"} 2\n"));
+        assertThat(text, not(containsString("le=\"255\"")));
+        assertThat(text, containsString("kairosdb_prometheus_write_adapter_phase_time_bucket{phase=\"write\",le=\"+Inf\"} 2\n"));
+        assertThat(text, containsString("kairosdb_prometheus_write_adapter_phase_time_sum{phase=\"write\"} 102\n"));
+        assertThat(text, containsString("kairosdb_prometheus_write_adapter_phase_time_count{phase=\"write\"} 2\n"));
+    }
+}
@@ -0,0 +1,76 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class NameMatcherTest
+{
+    private static final String[] NAMES = {
+            "", "foo", "foo_", "foo_bar", "foo.bar", "foofoo", "bar", "scrape_duration_seconds", "go_gc_duration_seconds",
+            "http_requests_total", "_total", "total", "a.b", "axb", "foo_\nbar", "x\n_total", "id", "pod_name", "ID", "abab", "abcd"
+    };
+
+    @Test
+    /*
+     * Verify that literal, prefix and suffix expressions are decided without falling back to regular expressions
+     * and give the same results as matching each expression on its own.
+     */
+    public void testLiteralForms()
+    {
+        assertSameAsPatterns("^scrape_duration_seconds$,^foo_.*$,^.*_total$,^id$,^pod_name$,^a\\.b$,foo,^.*$");
+    }
+
+    @Test
+    public void testRegularExpressions()
+    {
+        assertSameAsPatterns("^go_.*_seconds$,(?i)id,^fo+$,^a.b$,^(ab)\\1$,[a-c]+d");
+    }
+
+    @Test
+    public void testMixed()
+    {
+        NameMatcher matcher = new NameMatcher("^foo_.*$, ^bar$ ,^.*_total$,^go_.*_seconds$");
+
+        assertTrue(matcher.matches("foo_bar"));
+        assertTrue(matcher.matches("bar"));
+        assertTrue(matcher.matches("http_requests_total"));
+        assertTrue(matcher.matches("go_gc_duration_seconds"));
+        assertFalse(matcher.matches("foo.bar"));
+        assertFalse(matcher.matches("barbar"));
+        assertFalse(matcher.matches("scrape_duration_seconds"));
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        NameMatcher matcher = new NameMatcher("");
+
+        assertTrue(matcher.isEmpty());
+        assertFalse(matcher.matches("foo"));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void testInvalidExpression()
+    {
+        new NameMatcher("^foo_(.*$");
+    }
+
+    private void assertSameAsPatterns(String expressions)
+    {
+        NameMatcher matcher = new NameMatcher(expressions);
+        for (String name : NAMES) {
+            boolean expected = false;
+            for (String expression : expressions.split("\\s*,\\s*")) {
+                expected |= Pattern.compile(expression).matcher(name).matches();
+            }
+            assertThat("Match for \"" + name + "\"", matcher.matches(name), equalTo(expected));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.gson.JsonParser;
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.junit.Test;
+import prometheus.Types.Label;
+import prometheus.Types.Sample;
+import prometheus.Types.TimeSeries;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class PrometheusHistogramDataPointTest
+{
+    private final PrometheusHistogramDataPointFactory factory = new PrometheusHistogramDataPointFactory();
+
+    @Test
+    /*
+     * Verify that a data point read back from its datastore encoding equals the one written.
+     */
+    public void testBuffer()
+            throws IOException
+    {
+        PrometheusHistogramDataPoint dataPoint = new PrometheusHistogramDataPoint(1000, new String[]{"0.5", "+Inf"},
+                new double[]{1, 4}, Double.NaN, 4);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        dataPoint.writeValueToBuffer(new DataOutputStream(bytes));
+
+        assertThat(factory.getDataPoint(1000, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))), equalTo(dataPoint));
+    }
+
+    @Test
+    /*
+     * Verify that a data point read back from its JSON equals the one written, with buckets ordered by bound.
+     */
+    public void testJson()
+            throws IOException, JSONException
+    {
+        PrometheusHistogramDataPoint dataPoint = new PrometheusHistogramDataPoint(1000, new String[]{"0.5", "10", "+Inf"},
+                new double[]{1, 3, 4}, 7.5, 4);
+
+        StringWriter json = new StringWriter();
+        dataPoint.writeValueToJson(new JSONWriter(json));
+
+        assertThat(factory.getDataPoint(1000, new JsonParser().parse(json.toString())), equalTo(dataPoint));
+    }
+
+    @Test
+    /*
+     * Verify that data points are expanded into one series per bucket plus the sum and count series.
+     */
+    public void testExpand()
+    {
+        TimeSeries.Builder template = TimeSeries.newBuilder();
+        template.addLabelsBuilder().setName("__name__").setValue("latency");
+        template.addLabelsBuilder().setName("job").setValue("api");
+
+        Map<String, TimeSeries.Builder> series = new LinkedHashMap<>();
+        new PrometheusHistogramDataPoint(1000, new String[]{"0.5", "+Inf"}, new double[]{1, 4}, 7.5, 4).expand(template, series);
+        new PrometheusHistogramDataPoint(2000, new String[]{"0.5", "+Inf"}, new double[]{2, 5}, 8.5, 5).expand(template, series);
+
+        List<TimeSeries> expanded = new ArrayList<>();
+        for (TimeSeries.Builder builder : series.values()) {
+            expanded.add(builder.build());
+        }
+        assertThat(expanded.size(), equalTo(4));
+        assertThat(expanded.get(0), equalTo(timeSeries("latency_bucket", "0.5", 1, 2)));
+        assertThat(expanded.get(1), equalTo(timeSeries("latency_bucket", "+Inf", 4, 5)));
+        assertThat(expanded.get(2), equalTo(timeSeries("latency_sum", null, 7.5, 8.5)));
+        assertThat(expanded.get(3), equalTo(timeSeries("latency_count", null, 4, 5)));
+    }
+
+    private TimeSeries timeSeries(String metricName, String le, double value1, double value2)
+    {
+        TimeSeries.Builder builder = TimeSeries.newBuilder()
+                .addLabels(Label.newBuilder().setName("__name__").setValue(metricName))
+                .addLabels(Label.newBuilder().setName("job").setValue("api"));
+        if (le != null) {
+            builder.addLabels(Label.newBuilder().setName("le").setValue(le));
+        }
+        return builder.addSamples(Sample.newBuilder().setTimestamp(1000).setValue(value1))
+                .addSamples(Sample.newBuilder().setTimestamp(2000).setValue(value2))
+                .build();
+    }
+}
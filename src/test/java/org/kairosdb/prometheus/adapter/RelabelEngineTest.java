@@ -0,0 +1,102 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+import prometheus.Types.Label;
+
+import java.io.StringReader;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class RelabelEngineTest
+{
+    @Test
+    /*
+     * Verify that keep and drop decide on the source label values joined by the separator.
+     */
+    public void testKeepAndDrop()
+            throws UnknownHostException
+    {
+        RelabelEngine engine = newEngine("[{\"source_labels\": [\"__name__\", \"job\"], \"regex\": \"up;node\", \"action\": \"keep\"},"
+                + "{\"source_labels\": [\"instance\"], \"regex\": \"test.*\", \"action\": \"drop\"}]");
+
+        List<Label> labels = labels("__name__", "up", "instance", "prod1", "job", "node");
+        assertThat(engine.relabel(labels), sameInstance(labels));
+        assertThat(engine.relabel(labels("__name__", "up", "instance", "test1", "job", "node")), nullValue());
+        assertThat(engine.relabel(labels("__name__", "up", "job", "api")), nullValue());
+    }
+
+    @Test
+    /*
+     * Verify that replace sets the target label from the groups and removes it when the result is empty.
+     */
+    public void testReplace()
+            throws UnknownHostException
+    {
+        RelabelEngine engine = newEngine("[{\"source_labels\": [\"instance\"], \"regex\": \"([^:]+):(?<port>.*)\", \"target_label\": \"host\","
+                + " \"replacement\": \"${1}_$port$$\"},"
+                + "{\"source_labels\": [\"missing\"], \"target_label\": \"job\"},"
+                + "{\"source_labels\": [\"env\"], \"regex\": \"(.+)\", \"target_label\": \"${1}_env\", \"replacement\": \"true\"}]");
+
+        assertThat(engine.relabel(labels("env", "prod", "instance", "node1:9100", "job", "node")),
+                equalTo(labels("env", "prod", "instance", "node1:9100", "host", "node1_9100$", "prod_env", "true")));
+    }
+
+    @Test
+    /*
+     * Verify that hashmod puts the same value in the same bucket as Prometheus.
+     */
+    public void testHashmod()
+            throws UnknownHostException
+    {
+        RelabelEngine engine = newEngine("[{\"source_labels\": [\"instance\"], \"modulus\": 1000, \"target_label\": \"shard\", \"action\": \"hashmod\"}]");
+
+        // The last 8 bytes of md5("foo") are 0xedef654fccc4a4d8, which is 696 modulo 1000
+        assertThat(engine.relabel(labels("instance", "foo")), equalTo(labels("instance", "foo", "shard", "696")));
+    }
+
+    @Test
+    /*
+     * Verify that labelmap copies matching labels to new names and labeldrop and labelkeep remove labels by name.
+     */
+    public void testLabelActions()
+            throws UnknownHostException
+    {
+        RelabelEngine engine = newEngine("[{\"regex\": \"__meta_(.+)\", \"action\": \"labelmap\"},"
+                + "{\"regex\": \"__meta_.*\", \"action\": \"labeldrop\"},"
+                + "{\"regex\": \"__name__|pod|job\", \"action\": \"labelkeep\"}]");
+
+        assertThat(engine.relabel(labels("__meta_pod", "web-1", "__name__", "up", "instance", "node1")),
+                equalTo(labels("__name__", "up", "pod", "web-1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    /*
+     * Verify that a config the action can't use is rejected when the engine is created.
+     */
+    public void testInvalidConfig()
+            throws UnknownHostException
+    {
+        newEngine("[{\"source_labels\": [\"instance\"], \"target_label\": \"shard\", \"action\": \"hashmod\"}]");
+    }
+
+    private RelabelEngine newEngine(String json)
+            throws UnknownHostException
+    {
+        return new RelabelEngine(RelabelEngine.parseConfigs(new StringReader(json)), new AdapterMetrics());
+    }
+
+    private List<Label> labels(String... namesAndValues)
+    {
+        List<Label> labels = new ArrayList<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            labels.add(Label.newBuilder().setName(namesAndValues[i]).setValue(namesAndValues[i + 1]).build());
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,58 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.hash.HashCode;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class RetryCacheTest
+{
+    private final SnappyBlockDecoder decoder = new SnappyBlockDecoder(2, 1024 * 1024, 4 * 1024 * 1024);
+
+    @Test
+    /*
+     * Verify that a body is only recognized as a retry after a body with the same bytes was written.
+     */
+    public void testRetry()
+            throws IOException
+    {
+        RetryCache retryCache = new RetryCache(60000, 100, new AdapterMetrics());
+
+        HashCode digest = digest(retryCache, "body1");
+        assertThat(retryCache.isRetry(digest), equalTo(false));
+        retryCache.put(digest);
+
+        assertThat(retryCache.isRetry(digest(retryCache, "body1")), equalTo(true));
+        assertThat(retryCache.isRetry(digest(retryCache, "body2")), equalTo(false));
+    }
+
+    @Test
+    /*
+     * Verify that no digest is computed if the cache is disabled.
+     */
+    public void testDisabled()
+            throws IOException
+    {
+        RetryCache retryCache = new RetryCache(0, 100, new AdapterMetrics());
+
+        HashCode digest = digest(retryCache, "body1");
+        retryCache.put(digest);
+
+        assertThat(digest, nullValue());
+        assertThat(retryCache.isRetry(digest), equalTo(false));
+    }
+
+    private HashCode digest(RetryCache retryCache, String body)
+            throws IOException
+    {
+        try (SnappyBlockDecoder.Buffer buffer = decoder.read(new ByteArrayInputStream(Snappy.compress(body.getBytes("UTF-8"))))) {
+            return retryCache.digest(buffer);
+        }
+    }
+}
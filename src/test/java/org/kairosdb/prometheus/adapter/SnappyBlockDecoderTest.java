@@ -0,0 +1,123 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SnappyBlockDecoderTest
+{
+    private final SnappyBlockDecoder decoder = new SnappyBlockDecoder(2, 1024 * 1024, 4 * 1024 * 1024);
+
+    @Test
+    /*
+     * Verify that the raw snappy block format sent by Prometheus is decoded, including bodies larger than the initial buffers.
+     */
+    public void testRawBlockFormat()
+            throws IOException
+    {
+        byte[] data = newData(300 * 1024);
+
+        try (SnappyBlockDecoder.Buffer buffer = decoder.decode(new ByteArrayInputStream(Snappy.compress(data)))) {
+            assertThat(buffer.getUncompressedLength(), equalTo(data.length));
+            assertThat(buffer.newCodedInputStream().readRawBytes(data.length), equalTo(data));
+        }
+    }
+
+    @Test
+    /*
+     * Verify that bodies written with the snappy-java stream format are still accepted.
+     */
+    public void testStreamFormat()
+            throws IOException
+    {
+        byte[] data = newData(100 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (SnappyOutputStream outputStream = new SnappyOutputStream(compressed)) {
+            outputStream.write(data);
+        }
+
+        try (SnappyBlockDecoder.Buffer buffer = decoder.decode(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertThat(buffer.newCodedInputStream().readRawBytes(data.length), equalTo(data));
+        }
+    }
+
+    @Test
+    /*
+     * Verify that closed buffers are reused and buffers that grew past the limit are not.
+     */
+    public void testBuffersRecycled()
+            throws IOException
+    {
+        SnappyBlockDecoder.Buffer first = decoder.decode(new ByteArrayInputStream(Snappy.compress(newData(10))));
+        first.close();
+        SnappyBlockDecoder.Buffer second = decoder.decode(new ByteArrayInputStream(Snappy.compress(newData(10))));
+        assertThat(second, sameInstance(first));
+
+        second.close();
+        SnappyBlockDecoder.Buffer large = decoder.decode(new ByteArrayInputStream(Snappy.compress(newData(2 * 1024 * 1024))));
+        large.close();
+        SnappyBlockDecoder.Buffer third = decoder.decode(new ByteArrayInputStream(Snappy.compress(newData(10))));
+        assertThat(third, not(sameInstance(large)));
+    }
+
+    @Test
+    /*
+     * Verify that a body whose header claims more than the maximum decoded size is rejected.
+     */
+    public void testClaimedLengthTooLarge()
+            throws IOException
+    {
+        // Varint header of about 2GB followed by a few bytes
+        byte[] body = {(byte) 0x80, (byte) 0xa8, (byte) 0xd6, (byte) 0xb9, 0x07, 0x00, 0x61};
+
+        try {
+            decoder.decode(new ByteArrayInputStream(body));
+            fail("Expected BodyTooLargeException");
+        }
+        catch (SnappyBlockDecoder.BodyTooLargeException e) {
+            assertThat(e.getMessage(), equalTo("Request body decodes to more than 4194304 bytes"));
+        }
+    }
+
+    @Test
+    /*
+     * Verify that a body which decodes to more than the maximum size is rejected in the stream format as well.
+     */
+    public void testStreamFormatTooLarge()
+            throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (SnappyOutputStream outputStream = new SnappyOutputStream(compressed)) {
+            outputStream.write(new byte[5 * 1024 * 1024]);
+        }
+
+        try {
+            decoder.decode(new ByteArrayInputStream(compressed.toByteArray()));
+            fail("Expected BodyTooLargeException");
+        }
+        catch (SnappyBlockDecoder.BodyTooLargeException e) {
+            assertThat(e.getMessage(), equalTo("Request body decodes to more than 4194304 bytes"));
+        }
+    }
+
+    private byte[] newData(int length)
+    {
+        byte[] data = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,71 @@
+package org.kairosdb.prometheus.adapter;
+
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.UnknownHostException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TimeSeriesStreamProviderTest
+{
+    @Test
+    /*
+     * Verify that bodies that can't be decompressed or parsed are answered with 400.
+     */
+    public void testInvalidBody()
+            throws IOException
+    {
+        TimeSeriesStreamProvider provider = newProvider();
+
+        assertThat(readStatus(provider, new ByteArrayInputStream(new byte[]{0x05, 0x7f, 0x7f})), equalTo(400));
+        assertThat(readStatus(provider, new ByteArrayInputStream(Snappy.compress(new byte[]{0x0a, 0x7f}))), equalTo(400));
+    }
+
+    @Test
+    /*
+     * Verify that a failure to read the body is answered with 500 so Prometheus retries it.
+     */
+    public void testReadFailure()
+            throws UnknownHostException
+    {
+        InputStream entityStream = new InputStream()
+        {
+            @Override
+            public int read()
+                    throws IOException
+            {
+                throw new IOException("Connection reset");
+            }
+        };
+
+        assertThat(readStatus(newProvider(), entityStream), equalTo(500));
+    }
+
+    private int readStatus(TimeSeriesStreamProvider provider, InputStream entityStream)
+    {
+        try {
+            provider.readFrom(TimeSeriesStream.class, null, null, null, null, entityStream);
+            fail("Expected WebApplicationException");
+            return 0;
+        }
+        catch (WebApplicationException e) {
+            return e.getResponse().getStatus();
+        }
+    }
+
+    private TimeSeriesStreamProvider newProvider()
+            throws UnknownHostException
+    {
+        AdapterMetrics adapterMetrics = new AdapterMetrics();
+        return new TimeSeriesStreamProvider(new SnappyBlockDecoder(1, 1024, 1024), new LabelInterner(0, 0),
+                new RetryCache(0, 0, adapterMetrics), new RequestHistograms(adapterMetrics),
+                new ErrorDiagnostics(0, "", 1, 0, adapterMetrics), adapterMetrics, false);
+    }
+}
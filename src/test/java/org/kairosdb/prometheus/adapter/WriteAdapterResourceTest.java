@@ -2,13 +2,16 @@ package org.kairosdb.prometheus.adapter;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
 import org.junit.Before;
 import org.junit.Test;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.KairosDataPointFactory;
 import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
 import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.eventbus.Publisher;
 import org.kairosdb.events.DataPointEvent;
-import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import prometheus.Remote.WriteRequest;
@@ -17,15 +20,23 @@ import prometheus.Types.Sample;
 import prometheus.Types.TimeSeries;
 
 import javax.ws.rs.core.Response;
+import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -35,11 +46,23 @@ public class WriteAdapterResourceTest
     private FilterEventBus mockEventBus;
     @Mock
     private Publisher<DataPointEvent> mockPublisher;
+    @Mock
+    private KairosDataPointFactory mockDataPointFactory;
+    private AdapterMetrics adapterMetrics;
+    private int seriesLimit;
+    private int labelValueBudget;
+    private String relabelConfigs = "[]";
+    private boolean collapseHistograms;
+    private String longValues = "never";
+    private String longValueSuffixes = "_total,_count,_bucket";
+    private List<DataPointSet> reportedMetrics;
 
     @Before
     public void setup()
+            throws UnknownHostException
     {
         MockitoAnnotations.initMocks(this);
+        adapterMetrics = new AdapterMetrics();
         when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
     }
 
@@ -50,7 +73,7 @@ public class WriteAdapterResourceTest
     public void test()
             throws UnknownHostException
     {
-        WriteAdapterResource writeAdapterResource = new WriteAdapterResource(mockEventBus, "", "", "");
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
 
         long timeStamp = System.currentTimeMillis();
         ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1", "label2", "value2");
@@ -59,7 +82,11 @@ public class WriteAdapterResourceTest
 
         assertThat(response.getStatus(), equalTo(200));
         verify(mockPublisher).post(new DataPointEvent("metric1", labels, new DoubleDataPoint(timeStamp, 5.0)));
+        // Self-metrics are reported on the reporter schedule rather than posted with each request
+        verify(mockPublisher).post(any());
         verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.request.series", ImmutableSortedMap.of("host", getHostname(), "stat", "count"), 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.request.samples", ImmutableSortedMap.of("host", getHostname(), "stat", "max"), 1.0);
     }
 
     @Test
@@ -69,7 +96,7 @@ public class WriteAdapterResourceTest
     public void testDroppedMetrics()
             throws UnknownHostException
     {
-        WriteAdapterResource writeAdapterResource = new WriteAdapterResource(mockEventBus, "myPrefix.", "^foo_.*$,^scrape_duration_seconds$","");
+        WriteAdapterResource writeAdapterResource = newResource("myPrefix.", "^foo_.*$,^scrape_duration_seconds$","");
 
         long timeStamp = System.currentTimeMillis();
         ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1", "label2", "value2");
@@ -95,7 +122,7 @@ public class WriteAdapterResourceTest
     public void testDroppedLabels()
             throws UnknownHostException
     {
-        WriteAdapterResource writeAdapterResource = new WriteAdapterResource(mockEventBus, "", "", "^label1$, ^label2$ ,^label3$");
+        WriteAdapterResource writeAdapterResource = newResource("", "", "^label1$, ^label2$ ,^label3$");
 
         long timeStamp = System.currentTimeMillis();
         ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1", "label2", "value2", "fooLabel", "fooValue");
@@ -114,7 +141,7 @@ public class WriteAdapterResourceTest
     public void testPrefix()
             throws UnknownHostException
     {
-        WriteAdapterResource writeAdapterResource = new WriteAdapterResource(mockEventBus,"thePrefix." , "", "");
+        WriteAdapterResource writeAdapterResource = newResource("thePrefix." , "", "");
 
         long timeStamp = System.currentTimeMillis();
         ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1", "label2", "value2");
@@ -132,33 +159,577 @@ public class WriteAdapterResourceTest
 
     @Test
     /*
-     * Verify that a 500 error is returned on an exception and internal metrics are logged.
+     * Verify that a 500 error is returned when writing fails and internal metrics are logged.
      */
     public void testException()
             throws UnknownHostException
     {
-        WriteAdapterResource writeAdapterResource = new WriteAdapterResource(mockEventBus, "", "", "");
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1");
+        doThrow(new RuntimeException("Kairos is unavailable"))
+                .when(mockPublisher).post(new DataPointEvent("foo_bar", labels, new DoubleDataPoint(timeStamp, 1.0)));
+        Response response = writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), labels)));
+
+        assertThat(response.getStatus(), equalTo(500));
+        verifyInternalExceptionMetric("kairosdb.prometheus.write-adapter.exception.count", "RuntimeException");
+    }
+
+    @Test
+    /*
+     * Verify that a failure to publish a queued batch is answered with 500 so Prometheus sends the request again.
+     */
+    public void testQueuedPublishFailure()
+            throws UnknownHostException
+    {
+        IngestQueue ingestQueue = new IngestQueue(10, 2, 100, 7, adapterMetrics);
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", ingestQueue, new RequestSplitter(0, 1000, 1, adapterMetrics), adapterMetrics);
+        doThrow(new RuntimeException("Kairos is unavailable")).when(mockPublisher).post(any());
+
+        long timeStamp = System.currentTimeMillis();
+        ingestQueue.start();
+        Response response;
+        try {
+            response = writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of())));
+        }
+        finally {
+            ingestQueue.stop();
+        }
+
+        assertThat(response.getStatus(), equalTo(500));
+        verifyInternalExceptionMetric("kairosdb.prometheus.write-adapter.exception.count", "RuntimeException");
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 0.0);
+    }
+
+    @Test
+    /*
+     * Verify that invalid series are skipped and counted while the valid series of the request are still written.
+     */
+    public void testInvalidSeries()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
 
         long timeStamp = System.currentTimeMillis();
         ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1", "label2", "value2");
         TimeSeries timeSeries1 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), labels);
         TimeSeries timeSeries2 = newTimeSeries("foo.bar", ImmutableMap.of(timeStamp, 2.0), labels);
-        TimeSeries timeSeries3 = newTimeSeries("foo_bob", ImmutableMap.of(timeStamp, 3.0), labels);
-        TimeSeries timeSeries4 = newTimeSeries("", ImmutableMap.of(timeStamp, 4.0), labels); // Invalid timeseries will cause exception
+        TimeSeries timeSeries3 = newTimeSeries("", ImmutableMap.of(timeStamp, 3.0), labels);
+        TimeSeries timeSeries4 = newTimeSeries("foo_bob", ImmutableMap.of(timeStamp, 4.0), labels).toBuilder()
+                .addLabels(Label.newBuilder().setName("label1").setValue("value3")).build();
         Response response = writeAdapterResource.write(newRequest(timeSeries1, timeSeries2, timeSeries3, timeSeries4));
 
-        assertThat(response.getStatus(), equalTo(500));
-        verify(mockPublisher, never()).post(new DataPointEvent("thePrefix.foo_bar", labels, new DoubleDataPoint(timeStamp, 1.0)));
-        verify(mockPublisher, never()).post(new DataPointEvent("thePrefix.foo.bar", labels, new DoubleDataPoint(timeStamp, 2.0)));
-        verify(mockPublisher, never()).post(new DataPointEvent("thePrefix.foo_bob", labels, new DoubleDataPoint(timeStamp, 3.0)));
-        verifyInternalExceptionMetric("kairosdb.prometheus.write-adapter.exception.count", "No metric name was specified for the given metric. Missing __name__ label.");
+        assertThat(response.getStatus(), equalTo(200));
+        assertThat(response.getEntity(), equalTo("series-received: 4\nseries-invalid: 2\nsamples-sent: 2\n"
+                + "first-error: No metric name was specified for the given metric. Missing __name__ label.\n"));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", labels, new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo.bar", labels, new DoubleDataPoint(timeStamp, 2.0)));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "invalid", 2.0);
+    }
+
+    @Test
+    /*
+     * Verify that the status counts are in samples, so samples of invalid and dropped series aren't counted as failed.
+     */
+    public void testStatusCountsSamples()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "^foo_bob$", "");
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableMap<Long, Double> samples = ImmutableMap.of(timeStamp, 1.0, timeStamp + 1, 2.0, timeStamp + 2, 3.0);
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", samples, ImmutableSortedMap.of());
+        TimeSeries timeSeries2 = newTimeSeries("foo_bob", samples, ImmutableSortedMap.of());
+        TimeSeries timeSeries3 = newTimeSeries("", samples, ImmutableSortedMap.of());
+        Response response = writeAdapterResource.write(newRequest(timeSeries1, timeSeries2, timeSeries3));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 3.0);
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "dropped", 3.0);
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "invalid", 3.0);
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "failed", 0.0);
+    }
+
+    @Test
+    /*
+     * Verify that a 400 error is returned if none of the series of a request are valid so Prometheus doesn't retry it.
+     */
+    public void testAllSeriesInvalid()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        Response response = writeAdapterResource.write(newRequest(newTimeSeries("", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of())));
+
+        assertThat(response.getStatus(), equalTo(400));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "invalid", 1.0);
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 0.0);
+    }
+
+    @Test
+    /*
+     * Verify that the tags of a label set seen in an earlier request come from the tag cache.
+     */
+    public void testTagCache()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("thePrefix.", "", "^label2$", new IngestQueue(0, 1, 0, 5, adapterMetrics), new RequestSplitter(0, 1000, 1, adapterMetrics), adapterMetrics);
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1", "label2", "value2");
+        writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), labels)));
+        Response response = writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp + 1, 2.0), labels)));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("thePrefix.foo_bar", ImmutableSortedMap.of("label1", "value1"), new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher).post(new DataPointEvent("thePrefix.foo_bar", ImmutableSortedMap.of("label1", "value1"), new DoubleDataPoint(timeStamp + 1, 2.0)));
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.tag-cache.hit.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.tag-cache.miss.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+    }
+
+    @Test
+    /*
+     * Verify that a request whose queue fills up after some of its series were queued is answered with 503
+     * once those series are published.
+     */
+    public void testQueueFullAfterQueued()
+            throws UnknownHostException
+    {
+        CountDownLatch queueFull = new CountDownLatch(1);
+        IngestQueue ingestQueue = new IngestQueue(1, 1, 100, 7, adapterMetrics)
+        {
+            @Override
+            void submit(int shard, Runnable work)
+            {
+                try {
+                    super.submit(shard, work);
+                }
+                catch (QueueFullException e) {
+                    queueFull.countDown();
+                    throw e;
+                }
+            }
+        };
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", ingestQueue, new RequestSplitter(0, 1000, 1, adapterMetrics), adapterMetrics);
+        AtomicInteger published = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (published.getAndIncrement() == 0) {
+                // Keep the worker busy until the request found the queue full
+                queueFull.await();
+            }
+            return null;
+        }).when(mockPublisher).post(any());
+
+        ImmutableMap.Builder<Long, Double> samples = ImmutableMap.builder();
+        for (long i = 0; i < 1000; i++) {
+            samples.put(i, 1.0);
+        }
+        // Each series fills a batch, the first is written, the second waits in the queue and the third doesn't fit
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", samples.build(), ImmutableSortedMap.of("id", "1"));
+        TimeSeries timeSeries2 = newTimeSeries("foo_bar", samples.build(), ImmutableSortedMap.of("id", "2"));
+        TimeSeries timeSeries3 = newTimeSeries("foo_bar", samples.build(), ImmutableSortedMap.of("id", "3"));
+        ingestQueue.start();
+        Response response;
+        try {
+            response = writeAdapterResource.write(newRequest(timeSeries1, timeSeries2, timeSeries3));
+            assertThat(published.get(), equalTo(2000));
+        }
+        finally {
+            ingestQueue.stop();
+        }
+
+        assertThat(response.getStatus(), equalTo(503));
+        assertThat(response.getMetadata().getFirst("Retry-After"), equalTo(7));
+    }
+
+    @Test
+    /*
+     * Verify that a 429 with Retry-After is returned when the ingest queue is full.
+     */
+    public void testQueueFull()
+            throws UnknownHostException
+    {
+        IngestQueue ingestQueue = new IngestQueue(1, 1, 0, 7, adapterMetrics);
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", ingestQueue, new RequestSplitter(0, 1000, 1, adapterMetrics), adapterMetrics);
+        ingestQueue.submit(0, () -> {});
+
+        long timeStamp = System.currentTimeMillis();
+        Response response = writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of())));
+
+        assertThat(response.getStatus(), equalTo(429));
+        assertThat(response.getMetadata().getFirst("Retry-After"), equalTo(7));
+        verify(mockPublisher, never()).post(any());
+    }
+
+    @Test
+    /*
+     * Verify that the counts of a request split into chunks written in parallel are added together.
+     */
+    public void testParallel()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", new IngestQueue(0, 1, 0, 5, adapterMetrics), new RequestSplitter(2, 1, 2, adapterMetrics), adapterMetrics);
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1");
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar1", ImmutableMap.of(timeStamp, 1.0), labels);
+        TimeSeries timeSeries2 = newTimeSeries("foo_bar2", ImmutableMap.of(timeStamp, 2.0), labels);
+        TimeSeries timeSeries3 = newTimeSeries("foo_bar3", ImmutableMap.of(timeStamp, 3.0), labels);
+        TimeSeries timeSeries4 = newTimeSeries("foo_bar4", ImmutableMap.of(timeStamp, Double.NaN), labels);
+        Response response = writeAdapterResource.write(newRequest(timeSeries1, timeSeries2, timeSeries3, timeSeries4));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar1", labels, new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar2", labels, new DoubleDataPoint(timeStamp, 2.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar3", labels, new DoubleDataPoint(timeStamp, 3.0)));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 3.0);
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "dropped", 1.0);
+    }
+
+    @Test
+    /*
+     * Verify that only the samples of the elected replica of an HA pair are written, without the replica label.
+     */
+    public void testHaDeduplication()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", new IngestQueue(0, 1, 0, 5, adapterMetrics), new RequestSplitter(0, 1000, 1, adapterMetrics),
+                true, 0, adapterMetrics);
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("cluster", "prod", "__replica__", "a"));
+        TimeSeries timeSeries2 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("cluster", "prod", "__replica__", "b"));
+        writeAdapterResource.write(newRequest(timeSeries1));
+        Response response = writeAdapterResource.write(newRequest(timeSeries2));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher, times(1)).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("cluster", "prod"), new DoubleDataPoint(timeStamp, 1.0)));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.ha.duplicate.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+    }
+
+    @Test
+    /*
+     * Verify that all replicas of a series and all parts of a histogram are written by the same shard.
+     */
+    public void testShardRouting()
+            throws UnknownHostException
+    {
+        collapseHistograms = true;
+        IngestQueue ingestQueue = new IngestQueue(64, 4, 1000, 5, adapterMetrics);
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", ingestQueue,
+                new RequestSplitter(0, 1000, 1, adapterMetrics), true, 1024, adapterMetrics);
+
+        long timeStamp = System.currentTimeMillis();
+        List<TimeSeries> replicaA = new ArrayList<>();
+        List<TimeSeries> replicaB = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String id = Integer.toString(i);
+            replicaA.add(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("cluster", "prod", "id", id, "__replica__", "a")));
+            replicaB.add(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 2.0), ImmutableSortedMap.of("cluster", "prod", "id", id, "__replica__", "b")));
+            replicaA.add(newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 3.0), ImmutableSortedMap.of("id", id, "le", "+Inf")));
+            replicaA.add(newTimeSeries("latency_sum", ImmutableMap.of(timeStamp, 5.0), ImmutableSortedMap.of("id", id)));
+            replicaA.add(newTimeSeries("latency_count", ImmutableMap.of(timeStamp, 3.0), ImmutableSortedMap.of("id", id)));
+        }
+        ingestQueue.start();
+        Response response;
+        try {
+            writeAdapterResource.write(WriteRequest.newBuilder().addAllTimeseries(replicaA).build());
+            response = writeAdapterResource.write(WriteRequest.newBuilder().addAllTimeseries(replicaB).build());
+        }
+        finally {
+            ingestQueue.stop();
+        }
+
+        assertThat(response.getStatus(), equalTo(200));
+        for (int i = 0; i < 20; i++) {
+            String id = Integer.toString(i);
+            verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("cluster", "prod", "id", id), new DoubleDataPoint(timeStamp, 1.0)));
+            verify(mockPublisher).post(new DataPointEvent("latency", ImmutableSortedMap.of("id", id), new PrometheusHistogramDataPoint(timeStamp,
+                    new String[]{"+Inf"}, new double[]{3.0}, 5.0, 3.0)));
+        }
+        verify(mockPublisher, times(40)).post(any());
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 80.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.ha.duplicate.count", ImmutableSortedMap.of("host", getHostname()), 20.0);
+    }
+
+    @Test
+    /*
+     * Verify that samples at or below the newest timestamp written for their series are skipped and counted separately.
+     */
+    public void testHighWaterMark()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "", "", new IngestQueue(0, 1, 0, 5, adapterMetrics), new RequestSplitter(0, 1000, 1, adapterMetrics),
+                false, 1024, adapterMetrics);
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("label1", "value1");
+        writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0, timeStamp + 1, 2.0), labels)));
+        Response response = writeAdapterResource.write(newRequest(newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0, timeStamp + 1, 2.0, timeStamp + 2, 3.0), labels)));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher, times(1)).post(new DataPointEvent("foo_bar", labels, new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher, times(1)).post(new DataPointEvent("foo_bar", labels, new DoubleDataPoint(timeStamp + 1, 2.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", labels, new DoubleDataPoint(timeStamp + 2, 3.0)));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "out-of-order", 2.0);
+    }
+
+    @Test
+    /*
+     * Verify that a request recognized as a retry is acknowledged without publishing anything.
+     */
+    public void testRetry()
+            throws UnknownHostException
+    {
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        Response response = writeAdapterResource.write(TimeSeriesStream.retry(HashCode.fromLong(1)));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher, never()).post(any());
+    }
+
+    @Test
+    /*
+     * Verify that series already written keep flowing once a metric is over the series limit while new ones are rejected.
+     */
+    public void testSeriesLimit()
+            throws UnknownHostException
+    {
+        seriesLimit = 2;
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("id", "1"));
+        TimeSeries timeSeries2 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 2.0), ImmutableSortedMap.of("id", "2"));
+        TimeSeries timeSeries3 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 3.0, timeStamp + 1, 4.0), ImmutableSortedMap.of("id", "3"));
+        TimeSeries otherMetric = newTimeSeries("foo_baz", ImmutableMap.of(timeStamp, 5.0), ImmutableSortedMap.of("id", "3"));
+        writeAdapterResource.write(newRequest(timeSeries1, timeSeries2));
+        Response response = writeAdapterResource.write(newRequest(timeSeries1, timeSeries3, otherMetric));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher, times(2)).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("id", "1"), new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher, never()).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("id", "3"), new DoubleDataPoint(timeStamp, 3.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_baz", ImmutableSortedMap.of("id", "3"), new DoubleDataPoint(timeStamp, 5.0)));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "limited", 2.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.cardinality.estimate",
+                ImmutableSortedMap.of("host", getHostname(), "metric", "foo_bar"), 3.0);
+    }
+
+    @Test
+    /*
+     * Verify that a label with more values than the budget is stripped, including from series written before.
+     */
+    public void testLabelValueBudget()
+            throws UnknownHostException
+    {
+        labelValueBudget = 2;
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("job", "a", "request_id", "1"));
+        TimeSeries timeSeries2 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 2.0), ImmutableSortedMap.of("job", "a", "request_id", "2"));
+        TimeSeries timeSeries3 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 3.0), ImmutableSortedMap.of("job", "a", "request_id", "3"));
+        writeAdapterResource.write(newRequest(timeSeries1, timeSeries2));
+        writeAdapterResource.write(newRequest(timeSeries3));
+        writeAdapterResource.write(newRequest(timeSeries1));
+
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "a", "request_id", "1"), new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "a", "request_id", "2"), new DoubleDataPoint(timeStamp, 2.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "a"), new DoubleDataPoint(timeStamp, 3.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "a"), new DoubleDataPoint(timeStamp, 1.0)));
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.label-tracker.stripped.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.labels-dropped.count", ImmutableSortedMap.of("host", getHostname()), 2.0);
+    }
+
+    @Test
+    /*
+     * Verify that series over the series limit count keep flowing once a label of their metric is stripped, and that only
+     * the cached tags of that metric are built again.
+     */
+    public void testLabelStrippedUnderSeriesLimit()
+            throws UnknownHostException
+    {
+        labelValueBudget = 2;
+        seriesLimit = 2;
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("job", "a", "request_id", "1"));
+        TimeSeries timeSeries2 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 2.0), ImmutableSortedMap.of("job", "b", "request_id", "2"));
+        TimeSeries timeSeries3 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 3.0), ImmutableSortedMap.of("job", "a", "request_id", "3"));
+        TimeSeries otherMetric = newTimeSeries("foo_baz", ImmutableMap.of(timeStamp, 4.0), ImmutableSortedMap.of("job", "a"));
+        writeAdapterResource.write(newRequest(timeSeries1, timeSeries2, otherMetric));
+        writeAdapterResource.write(newRequest(timeSeries3));
+        writeAdapterResource.write(newRequest(timeSeries1, timeSeries2, otherMetric));
+
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "a"), new DoubleDataPoint(timeStamp, 3.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "a"), new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("job", "b"), new DoubleDataPoint(timeStamp, 2.0)));
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "limited", 0.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.tag-cache.hit.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.tag-cache.miss.count", ImmutableSortedMap.of("host", getHostname()), 6.0);
+    }
+
+    @Test
+    /*
+     * Verify that relabel rules are applied before the metric name and tags are built.
+     */
+    public void testRelabel()
+            throws UnknownHostException
+    {
+        relabelConfigs = "[{\"source_labels\": [\"__name__\"], \"regex\": \"go_.*\", \"action\": \"drop\"},"
+                + "{\"source_labels\": [\"instance\"], \"regex\": \"([^:]+):.*\", \"target_label\": \"host\"},"
+                + "{\"regex\": \"instance\", \"action\": \"labeldrop\"}]";
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries timeSeries1 = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("instance", "node1:9100"));
+        TimeSeries timeSeries2 = newTimeSeries("go_goroutines", ImmutableMap.of(timeStamp, 2.0), ImmutableSortedMap.of("instance", "node1:9100"));
+        Response response = writeAdapterResource.write(newRequest(timeSeries1, timeSeries2));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of("host", "node1"), new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher, times(1)).post(any());
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "dropped", 1.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.relabel.dropped.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+    }
+
+    @Test
+    /*
+     * Verify that the bucket, sum and count series of a histogram are written as one data point per timestamp.
+     */
+    public void testCollapseHistograms()
+            throws UnknownHostException
+    {
+        collapseHistograms = true;
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("job", "api");
+        TimeSeries sum = newTimeSeries("latency_sum", ImmutableMap.of(timeStamp, 7.5), labels);
+        TimeSeries count = newTimeSeries("latency_count", ImmutableMap.of(timeStamp, 4.0), labels);
+        TimeSeries bucket1 = newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("job", "api", "le", "0.5"));
+        TimeSeries bucket2 = newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 3.0), ImmutableSortedMap.of("job", "api", "le", "2.5"));
+        TimeSeries bucket3 = newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 4.0), ImmutableSortedMap.of("job", "api", "le", "+Inf"));
+        TimeSeries requests = newTimeSeries("requests_count", ImmutableMap.of(timeStamp, 9.0), labels);
+        Response response = writeAdapterResource.write(newRequest(bucket3, bucket1, sum, requests, count, bucket2));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("latency", labels, new PrometheusHistogramDataPoint(timeStamp,
+                new String[]{"0.5", "2.5", "+Inf"}, new double[]{1.0, 3.0, 4.0}, 7.5, 4.0)));
+        verify(mockPublisher).post(new DataPointEvent("requests_count", labels, new DoubleDataPoint(timeStamp, 9.0)));
+        verify(mockPublisher, times(2)).post(any());
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 6.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.histogram.collapsed.count", ImmutableSortedMap.of("host", getHostname()), 1.0);
+    }
+
+    @Test
+    /*
+     * Verify that the sum and count of a timestamp without buckets are written as plain data points.
+     */
+    public void testCollapseHistogramsWithoutBuckets()
+            throws UnknownHostException
+    {
+        collapseHistograms = true;
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("job", "api");
+        TimeSeries sum = newTimeSeries("latency_sum", ImmutableMap.of(timeStamp, 7.5, timeStamp + 1, 9.5), labels);
+        TimeSeries count = newTimeSeries("latency_count", ImmutableMap.of(timeStamp, 4.0, timeStamp + 1, 5.0), labels);
+        TimeSeries bucket = newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 4.0), ImmutableSortedMap.of("job", "api", "le", "+Inf"));
+        Response response = writeAdapterResource.write(newRequest(bucket, sum, count));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("latency", labels, new PrometheusHistogramDataPoint(timeStamp,
+                new String[]{"+Inf"}, new double[]{4.0}, 7.5, 4.0)));
+        verify(mockPublisher).post(new DataPointEvent("latency_sum", labels, new DoubleDataPoint(timeStamp + 1, 9.5)));
+        verify(mockPublisher).post(new DataPointEvent("latency_count", labels, new DoubleDataPoint(timeStamp + 1, 5.0)));
+        verify(mockPublisher, times(3)).post(any());
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 5.0);
+    }
+
+    @Test
+    /*
+     * Verify that a timestamp without a +Inf bucket and a sum sent before any buckets are written as plain data points.
+     */
+    public void testCollapseHistogramsPartial()
+            throws UnknownHostException
+    {
+        collapseHistograms = true;
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of("job", "api");
+        TimeSeries sum = newTimeSeries("latency_sum", ImmutableMap.of(timeStamp, 7.5), labels);
+        TimeSeries bucket1 = newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of("job", "api", "le", "0.5"));
+        TimeSeries bucket2 = newTimeSeries("latency_bucket", ImmutableMap.of(timeStamp, 3.0), ImmutableSortedMap.of("job", "api", "le", "2.5"));
+        TimeSeries count = newTimeSeries("latency_count", ImmutableMap.of(timeStamp, 4.0), labels);
+        Response response = writeAdapterResource.write(newRequest(sum, bucket1, bucket2, count));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("latency_sum", labels, new DoubleDataPoint(timeStamp, 7.5)));
+        verify(mockPublisher).post(new DataPointEvent("latency_bucket", ImmutableSortedMap.of("job", "api", "le", "0.5"), new DoubleDataPoint(timeStamp, 1.0)));
+        verify(mockPublisher).post(new DataPointEvent("latency_bucket", ImmutableSortedMap.of("job", "api", "le", "2.5"), new DoubleDataPoint(timeStamp, 3.0)));
+        verify(mockPublisher).post(new DataPointEvent("latency_count", labels, new DoubleDataPoint(timeStamp, 4.0)));
+        verify(mockPublisher, times(4)).post(any());
+        verifyInternalMetrics("kairosdb.prometheus.write-adapter.metrics-sent.count", "sent", 4.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.histogram.collapsed.count", ImmutableSortedMap.of("host", getHostname()), 0.0);
+    }
+
+    @Test
+    /*
+     * Verify that whole sample values are written as long data points and fractional ones as doubles.
+     */
+    public void testLongValuesIntegral()
+            throws UnknownHostException
+    {
+        longValues = "integral";
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries timeSeries = newTimeSeries("foo_bar", ImmutableMap.of(timeStamp, 42.0, timeStamp + 1, 1.5,
+                timeStamp + 2, -0x1p63, timeStamp + 3, 0x1p63), ImmutableSortedMap.of());
+        Response response = writeAdapterResource.write(newRequest(timeSeries));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of(), new LongDataPoint(timeStamp, 42)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of(), new DoubleDataPoint(timeStamp + 1, 1.5)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of(), new LongDataPoint(timeStamp + 2, Long.MIN_VALUE)));
+        verify(mockPublisher).post(new DataPointEvent("foo_bar", ImmutableSortedMap.of(), new DoubleDataPoint(timeStamp + 3, 0x1p63)));
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.data-points.count", ImmutableSortedMap.of("host", getHostname(), "type", "long"), 2.0);
+        verifyReportedMetric("kairosdb.prometheus.write-adapter.data-points.count", ImmutableSortedMap.of("host", getHostname(), "type", "double"), 2.0);
+    }
+
+    @Test
+    /*
+     * Verify that only series whose name ends in one of the suffixes are written as long data points.
+     */
+    public void testLongValuesSuffix()
+            throws UnknownHostException
+    {
+        longValues = "suffix";
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
+
+        long timeStamp = System.currentTimeMillis();
+        TimeSeries counter = newTimeSeries("requests_total", ImmutableMap.of(timeStamp, 12.0), ImmutableSortedMap.of());
+        TimeSeries gauge = newTimeSeries("temperature", ImmutableMap.of(timeStamp, 20.0), ImmutableSortedMap.of());
+        Response response = writeAdapterResource.write(newRequest(counter, gauge));
+
+        assertThat(response.getStatus(), equalTo(200));
+        verify(mockPublisher).post(new DataPointEvent("requests_total", ImmutableSortedMap.of(), new LongDataPoint(timeStamp, 12)));
+        verify(mockPublisher).post(new DataPointEvent("temperature", ImmutableSortedMap.of(), new DoubleDataPoint(timeStamp, 20.0)));
     }
 
     @Test
     public void test_NAN_or_Infinite()
             throws UnknownHostException
     {
-        WriteAdapterResource writeAdapterResource = new WriteAdapterResource(mockEventBus, "", "", "");
+        WriteAdapterResource writeAdapterResource = newResource("", "", "");
 
         long timeStamp = System.currentTimeMillis();
         TimeSeries timeSeries1 = newTimeSeries("foo_bar1", ImmutableMap.of(timeStamp, 1.0), ImmutableSortedMap.of());
@@ -180,19 +751,28 @@ public class WriteAdapterResourceTest
     private void verifyInternalMetrics(String metricName, String status, double count)
             throws UnknownHostException
     {
-        verify(mockPublisher).post(
-                argThat(new DataPointEventMatcher(new DataPointEvent(metricName,
-                        ImmutableSortedMap.of("host", getHostname(), "status", status),
-                        new DoubleDataPoint(System.currentTimeMillis(), count)))));
+        verifyReportedMetric(metricName, ImmutableSortedMap.of("host", getHostname(), "status", status), count);
     }
 
     private void verifyInternalExceptionMetric(String metricName, String exception)
             throws UnknownHostException
     {
-        verify(mockPublisher).post(
-                argThat(new DataPointEventMatcher(new DataPointEvent(metricName,
-                        ImmutableSortedMap.of("host", getHostname(), "exception", exception),
-                        new DoubleDataPoint(System.currentTimeMillis(), 1)))));
+        verifyReportedMetric(metricName, ImmutableSortedMap.of("host", getHostname(), "exception", exception), 1);
+    }
+
+    private void verifyReportedMetric(String metricName, ImmutableSortedMap<String, String> tags, double count)
+    {
+        // Counters are reported as the change since the previous report, so all checks share one report
+        if (reportedMetrics == null) {
+            reportedMetrics = adapterMetrics.getMetrics(System.currentTimeMillis());
+        }
+        for (DataPointSet dataPointSet : reportedMetrics) {
+            if (dataPointSet.getName().equals(metricName) && dataPointSet.getTags().equals(tags)) {
+                assertThat(metricName + " " + tags, dataPointSet.getDataPoints().get(0).getDoubleValue(), equalTo(count));
+                return;
+            }
+        }
+        fail("No " + metricName + " was reported with tags " + tags);
     }
 
     private String getHostname()
@@ -201,6 +781,37 @@ public class WriteAdapterResourceTest
         return InetAddress.getLocalHost().getHostName();
     }
 
+    private WriteAdapterResource newResource(String prefix, String dropMetrics, String dropLabels)
+            throws UnknownHostException
+    {
+        return newResource(prefix, dropMetrics, dropLabels, new IngestQueue(0, 1, 0, 5, adapterMetrics), new RequestSplitter(0, 1000, 1, adapterMetrics), adapterMetrics);
+    }
+
+    private WriteAdapterResource newResource(String prefix, String dropMetrics, String dropLabels, IngestQueue ingestQueue,
+            RequestSplitter requestSplitter, AdapterMetrics adapterMetrics)
+            throws UnknownHostException
+    {
+        return newResource(prefix, dropMetrics, dropLabels, ingestQueue, requestSplitter, false, 0, adapterMetrics);
+    }
+
+    private WriteAdapterResource newResource(String prefix, String dropMetrics, String dropLabels, IngestQueue ingestQueue,
+            RequestSplitter requestSplitter, boolean haEnabled, int highWaterMarkSize, AdapterMetrics adapterMetrics)
+            throws UnknownHostException
+    {
+        SeriesTagCache tagCache = new SeriesTagCache(1000, ingestQueue);
+        HaDeduplicator haDeduplicator = new HaDeduplicator(haEnabled, "cluster", "__replica__", 30000, ingestQueue, adapterMetrics);
+        HighWaterMarks highWaterMarks = new HighWaterMarks(highWaterMarkSize, 60000, ingestQueue, adapterMetrics);
+        CardinalityLimiter cardinalityLimiter = new CardinalityLimiter(seriesLimit, 0, 100, ingestQueue, adapterMetrics);
+        WriteAheadLog writeAheadLog = new WriteAheadLog(false, "wal", 1024, 0, mockEventBus, mockDataPointFactory, adapterMetrics);
+        RequestHistograms histograms = new RequestHistograms(adapterMetrics);
+        LabelCardinalityTracker labelTracker = new LabelCardinalityTracker(labelValueBudget, 0, 100, adapterMetrics);
+        return new WriteAdapterResource(prefix, dropMetrics, dropLabels, 1000, collapseHistograms, longValues, longValueSuffixes, tagCache,
+                new BatchPublisher(mockEventBus, 1000, writeAheadLog, histograms, adapterMetrics), ingestQueue,
+                requestSplitter, haDeduplicator, highWaterMarks, new RetryCache(0, 0, adapterMetrics), cardinalityLimiter, labelTracker,
+                new RelabelEngine(RelabelEngine.parseConfigs(new StringReader(relabelConfigs)), adapterMetrics), histograms,
+                new ErrorDiagnostics(0, "", 1, 0, adapterMetrics), adapterMetrics);
+    }
+
     private WriteRequest newRequest(TimeSeries... timeSeries)
     {
         return WriteRequest.newBuilder().addAllTimeseries(Arrays.asList(timeSeries)).build();
@@ -226,45 +837,4 @@ public class WriteAdapterResourceTest
 
         return timeSeriesBuilder.build();
     }
-
-    private class DataPointEventMatcher implements ArgumentMatcher<DataPointEvent>
-    {
-        private DataPointEvent event;
-        private String errorMessage;
-
-        DataPointEventMatcher(DataPointEvent event)
-        {
-            this.event = event;
-        }
-
-        @Override
-        public boolean matches(DataPointEvent dataPointEvent)
-        {
-            if (!event.getMetricName().equals(dataPointEvent.getMetricName()))
-            {
-                errorMessage = "Metric names don't match: " + event.getMetricName() + " != " + dataPointEvent.getMetricName();
-                return false;
-            }
-            if (!event.getTags().equals(dataPointEvent.getTags()))
-            {
-                errorMessage = "Tags don't match: " + event.getTags() + " != " + dataPointEvent.getTags();
-                return false;
-            }
-            if (event.getDataPoint().getDoubleValue() != dataPointEvent.getDataPoint().getDoubleValue())
-            {
-                errorMessage = "Data points don't match: " + event.getDataPoint().getDoubleValue() + " != " + dataPointEvent.getDataPoint().getDoubleValue();
-                return false;
-            }
-            return true;
-        }
-
-        @Override
-        public String toString()
-        {
-            if (errorMessage != null) {
-                return errorMessage;
-            }
-            return "";
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,142 @@
+package org.kairosdb.prometheus.adapter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteAheadLogTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private FilterEventBus mockEventBus;
+    @Mock
+    private Publisher<DataPointEvent> mockPublisher;
+    @Mock
+    private KairosDataPointFactory mockDataPointFactory;
+
+    @Before
+    public void setup()
+            throws IOException
+    {
+        MockitoAnnotations.initMocks(this);
+        when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
+        DoubleDataPointFactoryImpl doubleFactory = new DoubleDataPointFactoryImpl();
+        when(mockDataPointFactory.createDataPoint(eq(DoubleDataPointFactoryImpl.DST_DOUBLE), anyLong(), any(DataInput.class)))
+                .thenAnswer(invocation -> doubleFactory.getDataPoint(invocation.getArgument(1), (DataInput) invocation.getArgument(2)));
+    }
+
+    @Test
+    /*
+     * Verify that batches that were not confirmed before a restart are replayed and confirmed ones are not.
+     */
+    public void testReplay()
+            throws Exception
+    {
+        File directory = folder.getRoot();
+        ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("label1", "value1");
+        DataPointEvent event1 = new DataPointEvent("metric1", tags, new DoubleDataPoint(1, 1.0));
+        DataPointEvent event2 = new DataPointEvent("metric1", tags, new DoubleDataPoint(2, 2.0));
+        DataPointEvent event3 = new DataPointEvent("metric2", ImmutableSortedMap.of(), new DoubleDataPoint(3, 3.0));
+
+        WriteAheadLog writeAheadLog = newWriteAheadLog(directory, 64);
+        writeAheadLog.start();
+        writeAheadLog.confirm(writeAheadLog.append(ImmutableList.of(event1)));
+        // Doesn't fit in the segment of the first batch, which is sealed and deleted because it was confirmed
+        writeAheadLog.append(ImmutableList.of(event2, event3));
+        writeAheadLog.stop();
+
+        newWriteAheadLog(directory, 64).start();
+
+        verify(mockPublisher, never()).post(event1);
+        verify(mockPublisher).post(event2);
+        verify(mockPublisher).post(event3);
+        verify(mockPublisher, times(2)).post(any());
+        assertThat(directory.list().length, equalTo(1));
+    }
+
+    @Test
+    /*
+     * Verify that only the batches that weren't confirmed are replayed from a segment left behind by a crash.
+     */
+    public void testReplayAfterCrash()
+            throws Exception
+    {
+        File directory = folder.getRoot();
+        DataPointEvent event1 = new DataPointEvent("metric1", ImmutableSortedMap.of(), new DoubleDataPoint(1, 1.0));
+        DataPointEvent event2 = new DataPointEvent("metric1", ImmutableSortedMap.of(), new DoubleDataPoint(2, 2.0));
+        DataPointEvent event3 = new DataPointEvent("metric1", ImmutableSortedMap.of(), new DoubleDataPoint(3, 3.0));
+        DataPointEvent event4 = new DataPointEvent("metric1", ImmutableSortedMap.of(), new DoubleDataPoint(4, 4.0));
+
+        WriteAheadLog writeAheadLog = newWriteAheadLog(directory, 1024);
+        writeAheadLog.start();
+        WriteAheadLog.Entry entry1 = writeAheadLog.append(ImmutableList.of(event1));
+        writeAheadLog.append(ImmutableList.of(event2));
+        WriteAheadLog.Entry entry3 = writeAheadLog.append(ImmutableList.of(event3));
+        writeAheadLog.append(ImmutableList.of(event4));
+        // Shards confirm out of order
+        writeAheadLog.confirm(entry3);
+        writeAheadLog.confirm(entry1);
+
+        // The log isn't stopped, as if the process had crashed
+        newWriteAheadLog(directory, 1024).start();
+
+        verify(mockPublisher).post(event2);
+        verify(mockPublisher).post(event4);
+        verify(mockPublisher, times(2)).post(any());
+    }
+
+    @Test
+    /*
+     * Verify that append does nothing if the log is disabled.
+     */
+    public void testDisabled()
+    {
+        WriteAheadLog writeAheadLog = new WriteAheadLog(false, folder.getRoot().getPath(), 64, 0, mockEventBus, mockDataPointFactory, newAdapterMetrics());
+        writeAheadLog.start();
+
+        assertThat(writeAheadLog.append(ImmutableList.of(new DataPointEvent("metric1", ImmutableSortedMap.of(), new DoubleDataPoint(1, 1.0)))) == null, equalTo(true));
+        assertThat(folder.getRoot().list().length, equalTo(0));
+    }
+
+    private WriteAheadLog newWriteAheadLog(File directory, int segmentSize)
+    {
+        return new WriteAheadLog(true, directory.getPath(), segmentSize, 10, mockEventBus, mockDataPointFactory, newAdapterMetrics());
+    }
+
+    private AdapterMetrics newAdapterMetrics()
+    {
+        try {
+            return new AdapterMetrics();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}